@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A BlockSource produces the body of a response on demand, e.g., from a file,
+ * a generator, or a database cursor. The
+ * {@link ch.ethz.inf.vs.californium.layers.TransferLayer} reads only the
+ * blocks requested by the client, so large representations are served with
+ * memory proportional to one block.
+ * <p>
+ * Reads may happen at arbitrary offsets and from different threads. The
+ * source is closed when the transfer ends.
+ * <p>
+ * Unlike byte array bodies, sources are not tagged automatically. Set an ETag
+ * on the response to let clients continue and resume downloads after the
+ * transfer state on the server has expired.
+ * 
+ * @author Matthias Kovatsch
+ */
+public interface BlockSource {
+
+	/**
+	 * Returns the size of the body.
+	 * 
+	 * @return the number of bytes, or -1 if unknown before reading the end
+	 */
+	public int size();
+	
+	/**
+	 * Reads a part of the body.
+	 * 
+	 * @param offset the start of the part
+	 * @param length the maximum length of the part
+	 * @return a buffer with the bytes between position and limit, fewer than
+	 *         requested only at the end of the body
+	 * @throws IOException if the body cannot be read
+	 */
+	public ByteBuffer read(int offset, int length) throws IOException;
+	
+	public void close();
+
+}
@@ -34,6 +34,9 @@ import java.io.IOException;
 import java.net.SocketException;
 
 import ch.ethz.inf.vs.californium.layers.AdverseLayer;
+import ch.ethz.inf.vs.californium.layers.Exchange;
+import ch.ethz.inf.vs.californium.layers.ExchangeStore;
+import ch.ethz.inf.vs.californium.layers.IngestionLayer;
 import ch.ethz.inf.vs.californium.layers.TokenLayer;
 import ch.ethz.inf.vs.californium.layers.TransactionLayer;
 import ch.ethz.inf.vs.californium.layers.MatchingLayer;
@@ -70,10 +73,13 @@ public class Communicator extends UpperLayer {
 
 // Members /////////////////////////////////////////////////////////////////////
 
+	protected ExchangeStore exchangeStore;
+	
 	protected TokenLayer tokenLayer;
 	protected TransferLayer transferLayer;
 	protected MatchingLayer matchingLayer;
 	protected TransactionLayer transactionLayer;
+	protected IngestionLayer ingestionLayer;
 	protected AdverseLayer adverseLayer;
 	protected UDPLayer udpLayer;
 	
@@ -89,11 +95,15 @@ public class Communicator extends UpperLayer {
 	 */	
 	private Communicator() throws SocketException {
 		
+		// shared exchange state
+		exchangeStore = new ExchangeStore();
+		
 		// initialize layers
-		tokenLayer = new TokenLayer();
-		transferLayer = new TransferLayer(transferBlockSize);
-		matchingLayer = new MatchingLayer();
+		tokenLayer = new TokenLayer(exchangeStore);
+		transferLayer = new TransferLayer(exchangeStore, transferBlockSize);
+		matchingLayer = new MatchingLayer(exchangeStore);
 		transactionLayer = new TransactionLayer();
+		ingestionLayer = new IngestionLayer();
 		adverseLayer = new AdverseLayer();
 		udpLayer = new UDPLayer(udpPort, runAsDaemon);
 
@@ -177,7 +187,8 @@ public class Communicator extends UpperLayer {
 		tokenLayer.setLowerLayer(transferLayer);
 		transferLayer.setLowerLayer(matchingLayer);
 		matchingLayer.setLowerLayer(transactionLayer);
-		transactionLayer.setLowerLayer(udpLayer);
+		transactionLayer.setLowerLayer(ingestionLayer);
+		ingestionLayer.setLowerLayer(udpLayer);
 		
 		//transactionLayer.setLowerLayer(adverseLayer);
 		//adverseLayer.setLowerLayer(udpLayer);
@@ -205,18 +216,79 @@ public class Communicator extends UpperLayer {
 	@Override
 	protected void doReceiveMessage(Message msg) {
 
+		Request request = null;
+		
 		if (msg instanceof Response) {
 			Response response = (Response) msg;
 
 			// initiate custom response handling
-			if (response.getRequest() != null) {
-				response.getRequest().handleResponse(response);
+			request = response.getRequest();
+			if (request != null) {
+				request.handleResponse(response);
 			}
 		}
 
 		// pass message to registered receivers
 		deliverMessage(msg);
+		
+		// release a spilled body nobody read, queued responses are owned by the application
+		if (request != null && !request.responseQueueEnabled()) {
+			msg.dispose();
+		}
+
+	}
 
+	/**
+	 * Joins the multicast group of an observed resource, announced by its
+	 * mcast link attribute. The notifications are sent to the port of the
+	 * group, so the communicator must have been set up with that port.
+	 * Observers then register with the token of the mtkn link attribute and
+	 * the query parameter mcast.
+	 * 
+	 * @param group the multicast group of the resource
+	 * @throws IOException if the group cannot be joined on the local port
+	 */
+	public void joinGroup(EndpointAddress group) throws IOException {
+		
+		if (group.getPort()!=udpLayer.getPort()) {
+			throw new IOException(String.format("Notifications to port %d cannot be received on port %d", group.getPort(), udpLayer.getPort()));
+		}
+		
+		udpLayer.joinGroup(group.getAddress(), null);
+	}
+	
+	/**
+	 * Leaves a multicast group joined with {@link #joinGroup(EndpointAddress)}.
+	 * 
+	 * @param group the multicast group of the resource
+	 * @throws IOException if the group cannot be left
+	 */
+	public void leaveGroup(EndpointAddress group) throws IOException {
+		udpLayer.leaveGroup(group.getAddress(), null);
+	}
+	
+	/**
+	 * Cancels the exchange of a request, releasing its token and stopping the
+	 * retransmissions of the message currently on the wire.
+	 * 
+	 * @param request the request to cancel
+	 * @return true if an open exchange was canceled
+	 */
+	public boolean cancel(Request request) {
+		
+		Exchange exchange = request.getExchange();
+		
+		if (exchange == null) {
+			return false;
+		}
+		
+		if (tokenLayer.cancelExchange(request)) {
+			
+			// the request itself or the requests for its blocks, several for windowed downloads
+			transactionLayer.cancelTransactions(exchange);
+			return true;
+		}
+		return false;
 	}
 
 	// Queries /////////////////////////////////////////////////////////////////
@@ -225,6 +297,10 @@ public class Communicator extends UpperLayer {
 		return udpLayer.getPort();
 	}
 
+	public ExchangeStore getExchangeStore() {
+		return this.exchangeStore;
+	}
+
 	public TokenLayer getTokenLayer() {
 		return this.tokenLayer;
 	}
@@ -241,6 +317,10 @@ public class Communicator extends UpperLayer {
 		return this.transactionLayer;
 	}
 	
+	public IngestionLayer getIngestionLayer() {
+		return this.ingestionLayer;
+	}
+	
 	public UDPLayer getUDPLayer() {
 		return this.udpLayer;
 	}
@@ -107,6 +107,29 @@ public class EndpointAddress {
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return 31 * (address!=null ? address.hashCode() : 0) + port;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this==obj) {
+			return true;
+		}
+		if (!(obj instanceof EndpointAddress)) {
+			return false;
+		}
+		EndpointAddress other = (EndpointAddress) obj;
+		return port==other.port && (address==null ? other.address==null : address.equals(other.address));
+	}
+	
 	/**
 	 * Returns the IP address.
 	 *
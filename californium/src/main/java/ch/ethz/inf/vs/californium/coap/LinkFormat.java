@@ -60,6 +60,8 @@ public class LinkFormat {
 	public static final String MAX_SIZE_ESTIMATE     = "sz";
 	public static final String TITLE                 = "title";
 	public static final String OBSERVABLE            = "obs";
+	public static final String MULTICAST_GROUP       = "mcast";
+	public static final String MULTICAST_TOKEN       = "mtkn";
 
 	public static final Pattern DELIMITER            = Pattern.compile("\\s*,+\\s*"); // generous parsing
 
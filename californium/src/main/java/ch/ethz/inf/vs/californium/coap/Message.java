@@ -30,11 +30,15 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.coap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -42,7 +46,9 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.layers.Exchange;
 import ch.ethz.inf.vs.californium.layers.UpperLayer;
+import ch.ethz.inf.vs.californium.util.ChunkedBuffer;
 import ch.ethz.inf.vs.californium.util.DatagramReader;
 import ch.ethz.inf.vs.californium.util.DatagramWriter;
 
@@ -123,6 +129,15 @@ public class Message {
 	
 	private byte[] payload = null;
 	
+	/* A body received blockwise, only copied into payload on demand. */
+	private ChunkedBuffer payloadBuffer = null;
+	
+	/* A view into a shared body, e.g., a block of a larger representation. */
+	private ByteBuffer payloadSlice = null;
+	
+	/* A producer for a large body, read block by block by the TransferLayer. */
+	private BlockSource payloadSource = null;
+	
 	/* The CoAP version used */
 	private int version = SUPPORTED_VERSION;
 	
@@ -152,6 +167,9 @@ public class Message {
 	// this is required to handle implicit empty tokens (default value)
 	protected boolean requiresToken = true;
 	protected boolean requiresBlockwise = false;
+	
+	// the exchange state kept by the layers, attached by the MatchingLayer
+	private Exchange exchange = null;
 
 // Static methods //////////////////////////////////////////////////////////////
 	
@@ -310,7 +328,11 @@ public class Message {
 		writer.writeBytes(optWriter.toByteArray());
 		
 		//write payload
-		writer.writeBytes(payload);
+		if (payloadSlice != null) {
+			writer.writeBytes(payloadSlice.duplicate());
+		} else {
+			writer.writeBytes(getPayload());
+		}
 
 		// return encoded message
 		return writer.toByteArray();
@@ -682,8 +704,44 @@ public class Message {
 	 * @return the payload
 	 */
 	public byte[] getPayload() {
+		
+		// materialize a buffered body
+		if (payloadBuffer != null) {
+			payload = payloadBuffer.toByteArray();
+			payloadBuffer.dispose();
+			payloadBuffer = null;
+		} else if (payloadSlice != null) {
+			payload = new byte[payloadSlice.remaining()];
+			payloadSlice.duplicate().get(payload);
+			payloadSlice = null;
+		} else if (payloadSource != null) {
+			payload = readSource(payloadSource);
+			payloadSource.close();
+			payloadSource = null;
+		}
+		
 		return this.payload;
 	}
+	
+	/**
+	 * Returns the payload as stream. Large bodies received blockwise are
+	 * read from their buffer without copying them into a single array. The
+	 * stream takes over such a body and releases it once it is closed or
+	 * read to the end, so that it can only be read once.
+	 * 
+	 * @return a stream over the payload
+	 */
+	public InputStream getPayloadStream() {
+		if (payloadBuffer != null) {
+			ChunkedBuffer body = payloadBuffer;
+			payloadBuffer = null;
+			return body.openStream();
+		} else if (payloadSlice != null || payloadSource != null) {
+			return new ByteArrayInputStream(getPayload());
+		} else {
+			return new ByteArrayInputStream(payload != null ? payload : new byte[0]);
+		}
+	}
 
 	// Other getters/setters ///////////////////////////////////////////////////
 	
@@ -694,6 +752,7 @@ public class Message {
 	 */
 	public String getPayloadString() {
 		try {
+			byte[] payload = getPayload();
 			return payload != null ? new String(payload, "UTF-8") : null;
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
@@ -710,6 +769,63 @@ public class Message {
 	 */
 	public void setPayload(byte[] payload) {
 		this.payload = payload;
+		this.payloadBuffer = null;
+		this.payloadSlice = null;
+		this.payloadSource = null;
+	}
+	
+	/**
+	 * This method sets a buffered body as payload replacing any existing one.
+	 * 
+	 * @param body the buffer holding the payload
+	 */
+	public void setPayload(ChunkedBuffer body) {
+		this.payload = null;
+		this.payloadBuffer = body;
+		this.payloadSlice = null;
+		this.payloadSource = null;
+	}
+	
+	/**
+	 * This method sets a view into a larger buffer as payload replacing any
+	 * existing one. The content is not copied and must not change.
+	 * 
+	 * @param slice the buffer holding the payload between position and limit
+	 */
+	public void setPayload(ByteBuffer slice) {
+		this.payload = null;
+		this.payloadBuffer = null;
+		this.payloadSlice = slice;
+		this.payloadSource = null;
+	}
+	
+	/**
+	 * This method sets a producer for the payload replacing any existing one.
+	 * Blockwise transfers read only the requested blocks; the source is read
+	 * completely when the payload is needed as a whole.
+	 * 
+	 * @param source the source of the payload
+	 */
+	public void setPayload(BlockSource source) {
+		this.payload = null;
+		this.payloadBuffer = null;
+		this.payloadSlice = null;
+		this.payloadSource = source;
+	}
+	
+	public BlockSource getPayloadSource() {
+		return payloadSource;
+	}
+	
+	/**
+	 * Releases a buffered body that was not read, e.g., a spilled body once
+	 * the exchange completed. The payload is empty afterwards.
+	 */
+	public void dispose() {
+		if (payloadBuffer != null) {
+			payloadBuffer.dispose();
+			payloadBuffer = null;
+		}
 	}
 
 	// Other getters/setters ///////////////////////////////////////////////////
@@ -722,7 +838,7 @@ public class Message {
 	public synchronized void appendPayload(byte[] block) {
 	
 		if (block != null) {
-			if (payload != null) {
+			if (getPayload() != null) {
 		
 				byte[] oldPayload = payload;
 				payload = new byte[oldPayload.length + block.length];
@@ -768,8 +884,47 @@ public class Message {
 	}
 
 	public int payloadSize() {
+		if (payloadBuffer != null) {
+			return (int) payloadBuffer.size();
+		} else if (payloadSlice != null) {
+			return payloadSlice.remaining();
+		} else if (payloadSource != null) {
+			// sources of unknown size count as empty until read
+			return Math.max(payloadSource.size(), 0);
+		}
 		return payload != null ? payload.length : 0;
 	}
+	
+	/*
+	 * Reads a payload source completely.
+	 */
+	private static byte[] readSource(BlockSource source) {
+		
+		final int chunkSize = 1024;
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(source.size(), 0));
+		int offset = 0;
+		
+		try {
+			while (true) {
+				ByteBuffer chunk = source.read(offset, chunkSize);
+				int length = chunk.remaining();
+				
+				byte[] bytes = new byte[length];
+				chunk.get(bytes);
+				out.write(bytes, 0, length);
+				
+				offset += length;
+				if (length < chunkSize) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to read payload source: %s", e.getMessage()));
+		}
+		
+		return out.toByteArray();
+	}
 
 	/**
 	 * Returns a string that is assumed to uniquely identify a message.
@@ -1053,6 +1208,13 @@ public class Message {
 	public void requiresBlockwise(boolean value) {
 		requiresBlockwise = value;
 	}
+	
+	public Exchange getExchange() {
+		return exchange;
+	}
+	public void setExchange(Exchange exchange) {
+		this.exchange = exchange;
+	}
 
 	@Override
 	public String toString() {
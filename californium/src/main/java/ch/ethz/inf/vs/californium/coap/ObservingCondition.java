@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An ObservingCondition restricts the notifications of an observing
+ * relationship to changes of a numeric resource value that are of interest
+ * to the observer. It is given as Uri-Query parameters of the registration:
+ * <ul>
+ * <li>gt=x: the value is greater than x</li>
+ * <li>lt=x: the value is less than x</li>
+ * <li>band=x,y: the value is outside the band from x to y</li>
+ * <li>step=d: the value moved by at least d since the last notification</li>
+ * </ul>
+ * All given parameters must hold. While the thresholds hold, every change
+ * that satisfies the step is notified, as well as the first change after
+ * which they no longer hold, so that the observer learns that the value
+ * crossed back.
+ * <p>
+ * Observers with equal conditions on the same representation form a group.
+ * The {@link ObservingManager} evaluates the condition once per change for
+ * each group, using the condition instance shared by its observers.
+ * 
+ * @author Matthias Kovatsch
+ */
+class ObservingCondition {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(ObservingCondition.class.getName());
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private double greater = Double.NaN;
+	private double less = Double.NaN;
+	private double low = Double.NaN;
+	private double high = Double.NaN;
+	private double step = Double.NaN;
+	
+	/** The canonical form of the condition, equal for equal conditions. */
+	final String key;
+	
+	/** The query parameters of the first registration, used to rebuild registrations. */
+	final List<String> params;
+	
+	// group state, guarded by the notification pass of the resource
+	
+	/** The value of the latest notification, NaN before the first one. */
+	private double lastValue = Double.NaN;
+	
+	/** Whether the thresholds held for the previous value. */
+	private boolean lastHeld;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	private ObservingCondition(List<String> params) {
+		
+		this.params = params;
+		
+		for (String param : params) {
+			try {
+				String value = param.substring(param.indexOf('=') + 1);
+				
+				if (param.startsWith("gt=")) {
+					greater = Double.parseDouble(value);
+				} else if (param.startsWith("lt=")) {
+					less = Double.parseDouble(value);
+				} else if (param.startsWith("step=")) {
+					step = Math.abs(Double.parseDouble(value));
+				} else if (param.startsWith("band=")) {
+					int comma = value.indexOf(',');
+					double x = Double.parseDouble(value.substring(0, comma));
+					double y = Double.parseDouble(value.substring(comma + 1));
+					low = Math.min(x, y);
+					high = Math.max(x, y);
+				}
+			} catch (RuntimeException e) {
+				LOG.warning(String.format("Ignoring invalid observe condition: %s", param));
+			}
+		}
+		
+		this.key = String.format("gt=%s&lt=%s&band=%s,%s&step=%s", greater, less, low, high, step);
+	}
+	
+// Static methods //////////////////////////////////////////////////////////////
+	
+	/**
+	 * Checks whether a Uri-Query parameter belongs to a condition.
+	 * 
+	 * @param param the query parameter
+	 * @return true for gt, lt, band, and step
+	 */
+	static boolean isParameter(String param) {
+		return param.startsWith("gt=") || param.startsWith("lt=") || param.startsWith("band=") || param.startsWith("step=");
+	}
+	
+	/**
+	 * Parses the condition of an observing relationship.
+	 * 
+	 * @param params the condition parameters of the registration
+	 * @return the condition, or null if no valid parameter was given
+	 */
+	static ObservingCondition parse(List<String> params) {
+		
+		if (params.isEmpty()) {
+			return null;
+		}
+		
+		ObservingCondition condition = new ObservingCondition(params);
+		
+		if (Double.isNaN(condition.greater) && Double.isNaN(condition.less) && Double.isNaN(condition.low) && Double.isNaN(condition.step)) {
+			return null;
+		}
+		return condition;
+	}
+	
+	/**
+	 * Reads the numeric value of a rendered representation.
+	 * 
+	 * @param rendered the rendered response
+	 * @return the value, or NaN if the payload is not a number
+	 */
+	static double valueOf(Response rendered) {
+		
+		if (rendered==null || rendered.getPayloadSource()!=null) {
+			return Double.NaN;
+		}
+		
+		try {
+			return Double.parseDouble(rendered.getPayloadString().trim());
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Evaluates the condition for a new value of the resource and updates the
+	 * group state.
+	 * 
+	 * @param value the new value, NaN if it is not numeric
+	 * @return true if the group must be notified
+	 */
+	boolean evaluate(double value) {
+		
+		if (Double.isNaN(value)) {
+			// cannot be evaluated, do not hold back the change
+			return true;
+		}
+		
+		boolean held = (Double.isNaN(greater) || value > greater)
+				&& (Double.isNaN(less) || value < less)
+				&& (Double.isNaN(low) || value < low || value > high);
+		
+		boolean notify;
+		
+		if (held) {
+			notify = Double.isNaN(step) || Double.isNaN(lastValue) || Math.abs(value - lastValue) >= step;
+		} else {
+			// crossed back
+			notify = lastHeld;
+		}
+		
+		if (notify) {
+			lastValue = value;
+		}
+		lastHeld = held;
+		
+		return notify;
+	}
+}
@@ -30,18 +30,90 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.coap;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.endpoint.Resource;
 import ch.ethz.inf.vs.californium.layers.TransactionLayer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
- * The TokenManager stores all tokens currently used in transfers. New transfers
- * can acquire unique tokens from the manager.
+ * The ObservingManager keeps the observing relationships of all local
+ * resources and sends the notifications when a resource changes.
+ * <p>
+ * Observers are sharded by resource. A notification pass reads the observers
+ * of its resource without locking and sends the notifications in batches on
+ * a thread pool. Passes of the same resource run one after another, so that
+ * every observer receives the notifications in order. Changes during a pass
+ * are queued for the next one.
+ * <p>
+ * A pass renders the resource only once for every representation that is
+ * observed, i.e., for each combination of Accept option and query. The
+ * notifications for the single observers share the rendered payload and
+ * options and only differ in token, MID, type, and Observe option.
+ * <p>
+ * The notification rate is limited per observer by the minimum and maximum
+ * periods of the resource, which observers can override with the query
+ * parameters pmin and pmax (in seconds). Changes within the minimum period
+ * are coalesced and only the latest state is sent. A notification to an
+ * observer whose previous confirmable notification is still unacknowledged
+ * replaces the pending one and continues its retransmissions.
+ * <p>
+ * Observers can restrict their notifications to changes of interest by an
+ * {@link ObservingCondition} in the query (gt, lt, band, step). Observers
+ * with the same condition and representation are grouped, so that a pass
+ * evaluates each condition only once.
+ * <p>
+ * Changes of several resources can be batched with {@link #beginChanges()} and
+ * {@link #commitChanges()}. The batch runs one pass for all changed resources
+ * in which the notifications for an observer of several resources are sent
+ * together and with at most one confirmable check.
+ * <p>
+ * A resource with a multicast group publishes one NON notification per change
+ * to the group. Observers that registered with the group token and the query
+ * parameter mcast from the port of the group receive their notifications this
+ * way and are contacted by unicast only for the confirmable checks. Observers that cannot receive
+ * multicast, use conditions or other representations, or changes that need
+ * blockwise transfers are notified by unicast.
+ * <p>
+ * The Observe option carries a 24-bit sequence number per relationship that
+ * is incremented with every notification, so that clients can order
+ * notifications sent within the same second.
+ * <p>
+ * Every OBSERVING_REFRESH_INTERVAL-th notification to an observer is
+ * confirmable. The ACKs and retransmissions of these notifications estimate
+ * the loss rate and round-trip time of each observer. Observers that need
+ * retransmissions are checked less often, and observers whose loss estimate
+ * exceeds OBSERVING_EVICTION_LOSS are evicted.
+ * <p>
+ * A relationship does not keep the request that established it, but only the
+ * peer, token, sequence, and rate and health state of the observer. The path
+ * and the request rendering a representation are shared by all observers of
+ * the representation, and the notifications are built from these.
+ * <p>
+ * If OBSERVING_STORE names a directory, the relationships are persisted in an
+ * {@link ObservingStore} and restored when their resources are added to the
+ * endpoint after a restart.
  * 
  * @author Matthias Kovatsch
  */
@@ -51,23 +123,265 @@ public class ObservingManager {
 	
 	private static final Logger LOG = Logger.getLogger(ObservingManager.class.getName());
 	
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	/** The range of the Observe sequence numbers. */
+	private static final int SEQUENCE_MASK = 0xFFFFFF;
+	
+	/**
+	 * The increment of the Observe sequence of a restored relationship. It
+	 * stays newer than all values sent since the last snapshot as long as
+	 * those were fewer than half the sequence range.
+	 */
+	private static final int SEQUENCE_RESTORE_GAP = 0x7FFFFF;
+	
+	/** The number of canceled notification tasks after which the timer queue is purged. */
+	private static final int PURGE_INTERVAL = 1024;
 
 // Inner class /////////////////////////////////////////////////////////////////
 	
 	private class ObservingRelationship {
-		public String clientID;
+		public EndpointAddress peer;
+		public byte[] token;
+		/** The path of the resource, shared by all of its observers. */
 		public String resourcePath;
-		public GETRequest request;
+		/** The observed representation, shared by its observers. */
+		public ObservedRepresentation representation;
+		/** The condition of the notifications, shared by its group, null to notify every change. */
+		public ObservingCondition condition;
+		/** Set if the observer asked for the multicast group. */
+		public boolean joined;
+		/** Set if the observer receives the notifications to the multicast group. */
+		public boolean multicast;
 		public int lastMID;
+		/** The Observe value of the latest notification, guarded by this. */
+		public int sequence;
+		
+		public long minimumPeriod;
+		public long maximumPeriod;
 		
-		public ObservingRelationship(GETRequest request) {
+		/** The following members are guarded by this. */
+		public long lastNotified;
+		public TimerTask scheduled;
+		/** The time the scheduled task runs, it may run before the notification is due. */
+		public long wakeup;
+		/** The time the next notification with the latest state is due. */
+		public long due;
+		public boolean removed;
+		public Response pending;
+		
+		/** The notifications left until a CON notification is used. */
+		public int check;
+		/** The number of notifications between two CON notifications. */
+		public int confirmInterval;
+		/** The estimated share of lost CON transmissions. */
+		public double loss;
+		/** The smoothed time until a CON notification is acknowledged, -1 if unknown. */
+		public long rtt = -1;
+
+		public ObservingRelationship(GETRequest request, ResourceObservers shard) {
 			
-			request.setMID(-1);
+			LocalResource resource = shard.resource;
 			
-			this.clientID = request.getPeerAddress().toString();
-			this.resourcePath = request.getUriPath();
-			this.request = request;
+			this.peer = request.getPeerAddress();
+			this.token = request.getToken();
+			this.resourcePath = shard.path;
 			this.lastMID = -1;
+			this.confirmInterval = checkInterval;
+			this.check = checkInterval;
+			
+			this.minimumPeriod = resource.getMinimumPeriod() * 1000L;
+			this.maximumPeriod = resource.getMaximumPeriod() * 1000L;
+			
+			// rate and condition parameters do not change the representation
+			List<Option> query = new ArrayList<Option>();
+			List<String> conditionParams = new ArrayList<String>();
+			for (Option option : request.getOptions(OptionNumberRegistry.URI_QUERY)) {
+				String param = option.getStringValue();
+				if (param.startsWith("pmin=")) {
+					this.minimumPeriod = parsePeriod(param, minimumPeriod);
+				} else if (param.startsWith("pmax=")) {
+					this.maximumPeriod = parsePeriod(param, maximumPeriod);
+				} else if (ObservingCondition.isParameter(param)) {
+					conditionParams.add(param);
+				} else if (param.equals("mcast")) {
+					joined = true;
+				} else {
+					query.add(option);
+				}
+			}
+			
+			this.representation = shard.represent(request.getFirstAccept() + "?" + Option.join(query, "&"), request, query);
+			this.condition = representation.share(ObservingCondition.parse(conditionParams));
+			
+			// the group carries only the plain representation without conditions,
+			// and only reaches clients listening on the port of the group
+			this.multicast = joined && resource.getMulticastGroup()!=null && condition==null && query.isEmpty()
+					&& request.getFirstAccept()==MediaTypeRegistry.UNDEFINED
+					&& Arrays.equals(request.getToken(), resource.getMulticastToken())
+					&& peer.getPort()==resource.getMulticastGroup().getPort();
+			
+			if (joined && !multicast) {
+				LOG.info(String.format("Notifying multicast observer by unicast: %s @ %s", peer, resourcePath));
+			}
+		}
+		
+		private long parsePeriod(String param, long fallback) {
+			try {
+				return Math.max(0, Integer.parseInt(param.substring(5))) * 1000L;
+			} catch (NumberFormatException e) {
+				LOG.warning(String.format("Ignoring invalid observe parameter: %s", param));
+				return fallback;
+			}
+		}
+		
+		/**
+		 * Rebuilds the registration of the observer, e.g., for the store.
+		 */
+		public GETRequest toRequest() {
+			
+			GETRequest request = new GETRequest();
+			request.setPeerAddress(peer);
+			request.setToken(token);
+			request.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+			request.addOptions(representation.request.getOptions(OptionNumberRegistry.URI_PATH));
+			request.addOptions(representation.request.getOptions(OptionNumberRegistry.URI_QUERY));
+			if (condition!=null) {
+				for (String param : condition.params) {
+					request.addOption(new Option(param, OptionNumberRegistry.URI_QUERY));
+				}
+			}
+			if (minimumPeriod!=representation.resource.getMinimumPeriod() * 1000L) {
+				request.addOption(new Option("pmin=" + minimumPeriod / 1000L, OptionNumberRegistry.URI_QUERY));
+			}
+			if (maximumPeriod!=representation.resource.getMaximumPeriod() * 1000L) {
+				request.addOption(new Option("pmax=" + maximumPeriod / 1000L, OptionNumberRegistry.URI_QUERY));
+			}
+			if (joined) {
+				request.addOption(new Option("mcast", OptionNumberRegistry.URI_QUERY));
+			}
+			request.setAccept(representation.request.getFirstAccept());
+			request.setObserving(true);
+			
+			return request;
+		}
+	}
+	
+	/**
+	 * A representation of a resource, i.e., a combination of Accept option and
+	 * query, that is observed by one or more observers.
+	 */
+	private static class ObservedRepresentation {
+		
+		/** The Accept option and query. */
+		public String key;
+		
+		/** The request rendering the representation, attached to its notifications. */
+		public GETRequest request;
+		
+		/** The observed resource. */
+		public LocalResource resource;
+		
+		/** The conditions of its observer groups by key, pruned by the notification passes. */
+		public Map<String, ObservingCondition> conditions = new ConcurrentHashMap<String, ObservingCondition>();
+		
+		public ObservedRepresentation(String key, GETRequest registration, List<Option> query, LocalResource resource) {
+			
+			this.key = key;
+			this.resource = resource;
+			
+			this.request = new GETRequest();
+			request.addOptions(registration.getOptions(OptionNumberRegistry.URI_PATH));
+			request.addOptions(query);
+			request.setAccept(registration.getFirstAccept());
+			request.setResource(resource);
+			request.setObserving(true);
+		}
+		
+		/**
+		 * Returns the shared condition of the group a new observer joins,
+		 * called while holding the manager lock.
+		 * 
+		 * @param parsed the condition of the registration, may be null
+		 * @return the condition of the group, null if none
+		 */
+		public ObservingCondition share(ObservingCondition parsed) {
+			
+			if (parsed==null) {
+				return null;
+			}
+			
+			ObservingCondition condition = conditions.get(parsed.key);
+			
+			if (condition==null) {
+				condition = parsed;
+				conditions.put(parsed.key, condition);
+			}
+			return condition;
+		}
+	}
+	
+	/**
+	 * The resources changed within a batch of a thread.
+	 */
+	private static class ChangeBatch {
+		
+		/** The nesting level of beginChanges() calls. */
+		public int depth;
+		
+		/** The changed resources in the order of their first change. */
+		public Set<LocalResource> resources = new LinkedHashSet<LocalResource>();
+	}
+	
+	/**
+	 * The observers of a single resource and the state of its notification
+	 * passes.
+	 */
+	private class ResourceObservers {
+		
+		/** The observed resource. */
+		public LocalResource resource;
+		
+		/** The path of the resource. */
+		public String path;
+		
+		/** The observed representations by key, pruned by the notification passes. */
+		public Map<String, ObservedRepresentation> representations = new ConcurrentHashMap<String, ObservedRepresentation>();
+		
+		/** The renders of the latest pass by representation, used for deferred notifications. */
+		public volatile Map<String, Response> latest = new HashMap<String, Response>();
+		
+		/** The observers stored by client address, read without locking. */
+		public Map<EndpointAddress, ObservingRelationship> observers = new ConcurrentHashMap<EndpointAddress, ObservingRelationship>();
+		
+		/** The Observe value of the latest notification to the multicast group. */
+		public volatile int groupSequence;
+		
+		/** Set if the latest pass published its notification to the multicast group. */
+		public volatile boolean published;
+		
+		/** Set while a notification pass is running, guarded by this. */
+		public boolean running;
+		
+		/** The changes that arrived during the running pass, guarded by this. */
+		public int queued;
+		
+		/** The batches of the running pass that did not finish yet. */
+		public AtomicInteger remaining = new AtomicInteger();
+		
+		/**
+		 * Returns the shared representation for a new observer, called while
+		 * holding the manager lock.
+		 */
+		public ObservedRepresentation represent(String key, GETRequest registration, List<Option> query) {
+			
+			ObservedRepresentation representation = representations.get(key);
+			
+			if (representation==null) {
+				representation = new ObservedRepresentation(key, registration, query, resource);
+				representations.put(key, representation);
+			}
+			return representation;
 		}
 	}
 	
@@ -77,14 +391,43 @@ public class ObservingManager {
 
 // Members /////////////////////////////////////////////////////////////////////
 
-	/** Maps a resource path string to the resource's observers stored by client address string. */
-	private Map<String, Map<String, ObservingRelationship>> observersByResource = new HashMap<String, Map<String, ObservingRelationship>>();
+	/** Maps a resource path string to the resource's observers. */
+	private Map<String, ResourceObservers> observersByResource = new ConcurrentHashMap<String, ResourceObservers>();
+	
+	/** Maps a peer address to the clients relationships stored by resource path. */
+	private Map<EndpointAddress, Map<String, ObservingRelationship>> observersByClient = new ConcurrentHashMap<EndpointAddress, Map<String, ObservingRelationship>>();
 	
-	/** Maps a peer address string to the clients relationships stored by resource path. */
-	private Map<String, Map<String, ObservingRelationship>> observersByClient = new HashMap<String, Map<String, ObservingRelationship>>();
+	/** Maps the last MID of a notification to its relationship for RST matching, the MIDs are assigned by this server. */
+	private ConcurrentMap<Integer, ObservingRelationship> observersByMID = new ConcurrentHashMap<Integer, ObservingRelationship>();
 	
 	private int checkInterval = Properties.std.getInt("OBSERVING_REFRESH_INTERVAL");
-	private Map<String, Integer> intervalByResource = new HashMap<String, Integer>();
+	
+	/** The loss estimate above which observers are evicted. */
+	private double evictionLoss = Properties.std.getInt("OBSERVING_EVICTION_LOSS") / 100d;
+	
+	/** The number of observers notified by one task. */
+	private int batchSize = Math.max(1, Properties.std.getInt("OBSERVING_BATCH_SIZE"));
+	
+	/** The timer daemon for deferred and periodic notifications. */
+	private Timer timer = new Timer(true); // run as daemon
+	
+	/** The notification tasks canceled since the start, canceled tasks stay queued until due. */
+	private AtomicInteger canceledTasks = new AtomicInteger();
+	
+	/** The persistent store of the relationships, null if disabled. */
+	private ObservingStore store;
+	
+	/** The changes recorded by the batch of the current thread. */
+	private ThreadLocal<ChangeBatch> batches = new ThreadLocal<ChangeBatch>();
+	
+	/** The threads sending the notifications. */
+	private ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Properties.std.getInt("OBSERVING_THREADS")), new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ObservingManager");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 // Constructors ////////////////////////////////////////////////////////////////
 	
@@ -92,6 +435,26 @@ public class ObservingManager {
 	 * Default singleton constructor.
 	 */
 	private ObservingManager() {
+		
+		String directory = Properties.std.getStr("OBSERVING_STORE");
+		
+		if (directory!=null && directory.length() > 0) {
+			try {
+				store = new ObservingStore(new File(directory));
+				
+				int interval = Properties.std.getInt("OBSERVING_SNAPSHOT_INTERVAL");
+				if (interval > 0) {
+					timer.schedule(new TimerTask() {
+						@Override
+						public void run() {
+							snapshot();
+						}
+					}, interval, interval);
+				}
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to open observing store, relationships will not be persisted: %s", e.getMessage()));
+			}
+		}
 	}
 	
 	public static ObservingManager getInstance() {
@@ -104,124 +467,819 @@ public class ObservingManager {
 		this.checkInterval = interval;
 	}
 	
-	public synchronized void notifyObservers(LocalResource resource) {
-
-		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
+	public void notifyObservers(LocalResource resource) {
+		
+		ChangeBatch batch = batches.get();
+		
+		if (batch!=null) {
+			// notified on commit
+			batch.resources.add(resource);
+			return;
+		}
 
-		synchronized(this) {
+		ResourceObservers shard = observersByResource.get(resource.getPath());
 		
-			if (resourceObservers!=null && resourceObservers.size()>0) {
-				
-				LOG.info(String.format("Notifying observers: %d @ %s", resourceObservers.size(), resource.getPath()));
-				
-				int check = -1;
-				
-				// get/initialize
-				if (!intervalByResource.containsKey(resource.getPath())) {
-					check = checkInterval;
-				} else {
-					check = intervalByResource.get(resource.getPath()) - 1;
+		if (shard==null || shard.observers.isEmpty()) {
+			return;
+		}
+		
+		synchronized (shard) {
+			// keep the order of notifications
+			if (shard.running) {
+				++shard.queued;
+				return;
+			}
+			shard.running = true;
+		}
+		
+		startPass(shard, resource);
+	}
+	
+	/**
+	 * Starts a batch of changes for the current thread. Until the matching
+	 * {@link #commitChanges()}, changed resources are only recorded. Batches
+	 * can be nested; the outermost commit notifies the observers.
+	 */
+	public void beginChanges() {
+		
+		ChangeBatch batch = batches.get();
+		
+		if (batch==null) {
+			batch = new ChangeBatch();
+			batches.set(batch);
+		}
+		++batch.depth;
+	}
+	
+	/**
+	 * Ends a batch of changes of the current thread and notifies the
+	 * observers of all resources changed within it in one pass.
+	 */
+	public void commitChanges() {
+		
+		ChangeBatch batch = batches.get();
+		
+		if (batch==null) {
+			LOG.warning("Committing changes without batch");
+			return;
+		}
+		
+		if (--batch.depth==0) {
+			batches.remove();
+			notifyObservers(batch.resources);
+		}
+	}
+	
+	/**
+	 * Notifies the observers of several changed resources in one pass. An
+	 * observer of several of the resources receives its notifications
+	 * together and with at most one confirmable check.
+	 * 
+	 * @param resources the changed resources
+	 */
+	public void notifyObservers(Collection<LocalResource> resources) {
+		
+		final List<ResourceObservers> shards = new ArrayList<ResourceObservers>();
+		
+		for (LocalResource resource : resources) {
+			
+			ResourceObservers shard = observersByResource.get(resource.getPath());
+			
+			if (shard==null || shard.observers.isEmpty() || shards.contains(shard)) {
+				continue;
+			}
+			
+			synchronized (shard) {
+				// keep the order of notifications, resources with a running pass catch up after it
+				if (shard.running) {
+					++shard.queued;
+					continue;
 				}
-				// update
-				if (check <= 0) {
-					intervalByResource.put(resource.getPath(), checkInterval);
-					LOG.info(String.format("Refreshing observing relationship: %s", resource.getPath()));
-				} else {
-					intervalByResource.put(resource.getPath(), check);
+				shard.running = true;
+			}
+			
+			shards.add(shard);
+		}
+		
+		if (shards.isEmpty()) {
+			return;
+		}
+		
+		// group the notifications by observer
+		Map<EndpointAddress, List<ObservingRelationship>> clients = new LinkedHashMap<EndpointAddress, List<ObservingRelationship>>();
+		for (ResourceObservers shard : shards) {
+			for (ObservingRelationship observer : preparePass(shard, shard.resource, new ArrayList<ObservingRelationship>(shard.observers.values()))) {
+				List<ObservingRelationship> group = clients.get(observer.peer);
+				if (group==null) {
+					group = new ArrayList<ObservingRelationship>();
+					clients.put(observer.peer, group);
 				}
-				
-				for (ObservingRelationship observer : resourceObservers.values()) {
-					
-					GETRequest request = observer.request;
-							
-					// check
-					if (check<=0) {
-						request.setType(messageType.CON);
-					} else {
-						request.setType(messageType.NON);
+				group.add(observer);
+			}
+		}
+		
+		// split into tasks of about batchSize observers without separating an observer's notifications
+		final List<List<List<ObservingRelationship>>> tasks = new ArrayList<List<List<ObservingRelationship>>>();
+		List<List<ObservingRelationship>> task = null;
+		int size = 0;
+		for (List<ObservingRelationship> group : clients.values()) {
+			if (task==null || size >= batchSize) {
+				task = new ArrayList<List<ObservingRelationship>>();
+				tasks.add(task);
+				size = 0;
+			}
+			task.add(group);
+			size += group.size();
+		}
+		
+		if (tasks.isEmpty()) {
+			for (ResourceObservers shard : shards) {
+				finishPass(shard, shard.resource);
+			}
+			return;
+		}
+		
+		final AtomicInteger remaining = new AtomicInteger(tasks.size());
+		
+		for (final List<List<ObservingRelationship>> groups : tasks) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						for (List<ObservingRelationship> group : groups) {
+							boolean checked = false;
+							for (ObservingRelationship observer : group) {
+								ResourceObservers shard = observersByResource.get(observer.resourcePath);
+								checked |= notifyObserver(observer, shard, shard.latest.get(observer.representation.key), checked);
+							}
+						}
+					} finally {
+						if (remaining.decrementAndGet()==0) {
+							for (ResourceObservers shard : shards) {
+								finishPass(shard, shard.resource);
+							}
+						}
 					}
-					
-					// execute
-					resource.performGET(request);
-					prepareResponse(request);
-					
-					if (request.getPeerAddress() != null) {
-						request.getResponse().send();
-					} else {
-						// handle locally
-						request.handleResponse(request.getResponse());
+				}
+			});
+		}
+	}
+	
+	private void startPass(final ResourceObservers shard, final LocalResource resource) {
+		
+		final List<ObservingRelationship> observers = preparePass(shard, resource, new ArrayList<ObservingRelationship>(shard.observers.values()));
+		
+		if (observers.isEmpty()) {
+			finishPass(shard, resource);
+			return;
+		}
+		
+		final Map<String, Response> renders = shard.latest;
+
+		shard.remaining.set((observers.size() + batchSize - 1) / batchSize);
+		
+		for (int i = 0; i < observers.size(); i += batchSize) {
+			
+			final List<ObservingRelationship> batch = observers.subList(i, Math.min(i + batchSize, observers.size()));
+			
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						for (ObservingRelationship observer : batch) {
+							notifyObserver(observer, shard, renders.get(observer.representation.key), false);
+						}
+					} finally {
+						if (shard.remaining.decrementAndGet()==0) {
+							finishPass(shard, resource);
+						}
 					}
 				}
+			});
+		}
+	}
+	
+	/**
+	 * Renders the resource for a pass, evaluates the conditions, and publishes
+	 * to the multicast group. The renders are stored as the latest of the
+	 * resource.
+	 * 
+	 * @return the observers to notify
+	 */
+	private List<ObservingRelationship> preparePass(ResourceObservers shard, LocalResource resource, List<ObservingRelationship> observers) {
+		
+		if (observers.isEmpty()) {
+			return observers;
+		}
+		
+		LOG.info(String.format("Notifying observers: %d @ %s", observers.size(), resource.getPath()));
+		
+		// render once per representation
+		Map<String, Response> renders = new HashMap<String, Response>();
+		for (ObservingRelationship observer : observers) {
+			if (!renders.containsKey(observer.representation.key)) {
+				renders.put(observer.representation.key, render(observer.representation, resource));
+			}
+		}
+		shard.latest = renders;
+		
+		// drop the representations without observers, new ones are created again if needed
+		shard.representations.keySet().retainAll(renders.keySet());
+		
+		// evaluate once per condition group, the observers of a group share its condition
+		Map<ObservingCondition, Boolean> matches = new HashMap<ObservingCondition, Boolean>();
+		for (ObservingRelationship observer : observers) {
+			if (observer.condition!=null && !matches.containsKey(observer.condition)) {
+				matches.put(observer.condition, observer.condition.evaluate(ObservingCondition.valueOf(renders.get(observer.representation.key))));
+			}
+		}
+		
+		// drop the conditions without observers
+		for (ObservedRepresentation representation : shard.representations.values()) {
+			representation.conditions.values().retainAll(matches.keySet());
+		}
+		
+		// publish once for all multicast observers
+		for (ObservingRelationship observer : observers) {
+			if (observer.multicast) {
+				shard.groupSequence = (shard.groupSequence + 1) & SEQUENCE_MASK;
+				shard.published = publish(shard, resource, renders.get(observer.representation.key));
+				break;
+			}
+		}
+		
+		List<ObservingRelationship> selected = new ArrayList<ObservingRelationship>(observers.size());
+		for (ObservingRelationship observer : observers) {
+			if (observer.condition==null || matches.get(observer.condition)) {
+				selected.add(observer);
 			}
 		}
+		return selected;
 	}
 	
+	private void finishPass(ResourceObservers shard, LocalResource resource) {
+		
+		synchronized (shard) {
+			if (shard.queued==0) {
+				shard.running = false;
+				return;
+			}
+			--shard.queued;
+		}
+		
+		startPass(shard, resource);
+	}
 	
-	private void prepareResponse(Request request) {
-
-		// consecutive response require new MID that must be stored for RST matching
-		if (request.getResponse().getMID()==-1) {
-			request.getResponse().setMID(TransactionLayer.nextMessageID());
+	/**
+	 * Renders a representation of the resource.
+	 * 
+	 * @param representation the representation whose request is performed
+	 * @param resource the changed resource
+	 * @return the rendered response, or null if the resource did not respond
+	 */
+	private Response render(ObservedRepresentation representation, LocalResource resource) {
+		
+		GETRequest request = representation.request;
+		Response rendered = null;
+		
+		synchronized (representation) {
+			try {
+				request.setResponse(null);
+				resource.performGET(request);
+			} catch (RuntimeException e) {
+				LOG.severe(String.format("Failed to render notification for %s: %s", resource.getPath(), e.getMessage()));
+			}
+			
+			rendered = request.getResponse();
 		}
 		
-		// 16-bit second counter
-		int secs = (int) ((System.currentTimeMillis() - request.startTime) / 1000) & 0xFFFF;
-		request.getResponse().setOption(new Option(secs, OptionNumberRegistry.OBSERVE));
+		if (rendered==null) {
+			LOG.warning(String.format("Missing response for notification: %s", resource.getPath()));
+		} else if (rendered.getPayloadSource()==null) {
+			// materialize once, so that the observers only read the payload
+			rendered.getPayload();
+		} else {
+			// sources are performed for each observer, the render only tells that a source is used
+			rendered.getPayloadSource().close();
+		}
 		
-		// store MID for RST matching
-		updateLastMID(request.getPeerAddress().toString(), request.getUriPath(), request.getResponse().getMID());
+		return rendered;
 	}
 	
+	/**
+	 * Notifies an observer unless it is within its minimum period.
+	 * 
+	 * @param deferCheck postpones a due confirmable check, e.g., when the
+	 *            observer was just checked with another notification
+	 * @return true if a confirmable notification was sent
+	 */
+	private boolean notifyObserver(ObservingRelationship observer, ResourceObservers shard, Response rendered, boolean deferCheck) {
+		
+		synchronized (observer) {
+			
+			long wait = observer.lastNotified + observer.minimumPeriod - System.currentTimeMillis();
+			
+			if (wait > 0) {
+				// coalesce changes, the latest state is sent when the period has passed
+				if (observer.scheduled==null || observer.due > System.currentTimeMillis() + wait) {
+					schedule(observer, shard, wait);
+				}
+				return false;
+			}
+			
+			return sendNotification(observer, shard, rendered, false, deferCheck);
+		}
+	}
 	
-	public void addObserver(GETRequest request, LocalResource resource) {
+	/**
+	 * Schedules a notification with the latest state of the resource, either
+	 * for changes coalesced during the minimum period or when the maximum
+	 * period has passed. Each observer has at most one task. A task that runs
+	 * before the notification is due, because the due time moved on, only
+	 * schedules the next one. Called while holding the lock of the observer.
+	 */
+	private void schedule(final ObservingRelationship observer, final ResourceObservers shard, long delay) {
 		
-		synchronized (this) {
-			request.setObserving(true);
+		observer.due = System.currentTimeMillis() + delay;
+		
+		if (observer.scheduled!=null) {
+			if (observer.wakeup <= observer.due) {
+				return;
+			}
+			cancelScheduled(observer);
+		}
+		
+		observer.scheduled = new TimerTask() {
+			@Override
+			public void run() {
+				final TimerTask task = this;
+				executor.execute(new Runnable() {
+					public void run() {
+						synchronized (observer) {
+							// skip if superseded or terminated
+							if (observer.scheduled!=task || shard.observers.get(observer.peer)!=observer) {
+								return;
+							}
+							observer.scheduled = null;
+							
+							long wait = observer.due - System.currentTimeMillis();
+							if (wait > 0) {
+								schedule(observer, shard, wait);
+								return;
+							}
+							
+							Response rendered = shard.latest.get(observer.representation.key);
+							if (rendered==null) {
+								rendered = render(observer.representation, shard.resource);
+							}
+							// refreshes after the maximum period are confirmable
+							sendNotification(observer, shard, rendered, observer.maximumPeriod > 0 && observer.lastNotified + observer.maximumPeriod <= System.currentTimeMillis(), false);
+						}
+					}
+				});
+			}
+		};
+		
+		observer.wakeup = observer.due;
+		timer.schedule(observer.scheduled, delay);
+	}
+	
+	/**
+	 * Cancels the scheduled task of an observer, called while holding its lock.
+	 */
+	private void cancelScheduled(ObservingRelationship observer) {
+		
+		if (observer.scheduled!=null) {
+			observer.scheduled.cancel();
+			observer.scheduled = null;
 			
-			ObservingRelationship toAdd = new ObservingRelationship(request);
+			if (canceledTasks.incrementAndGet() % PURGE_INTERVAL == 0) {
+				timer.purge();
+			}
+		}
+	}
+	
+	private void cancel(ObservingRelationship observer) {
+		synchronized (observer) {
+			cancelScheduled(observer);
+			if (observer.pending!=null) {
+				Communicator.getInstance().getTransactionLayer().cancelTransaction(observer.pending);
+				observer.pending = null;
+			}
+			observer.removed = true;
+			observersByMID.remove(observer.lastMID, observer);
+		}
 		
-			// get clients map for the given resource path
-			Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
-			if (resourceObservers==null) {
-				// lazy creation
-				resourceObservers = new HashMap<String, ObservingRelationship>();
-				observersByResource.put(resource.getPath(), resourceObservers);
+		if (store!=null) {
+			store.remove(observer.peer.toString(), observer.resourcePath);
+		}
+	}
+	
+	/**
+	 * Sends a notification to an observer, called while holding its lock.
+	 * 
+	 * @return true if the notification is confirmable
+	 */
+	private boolean sendNotification(ObservingRelationship observer, ResourceObservers shard, Response rendered, boolean refresh, boolean deferCheck) {
+		
+		if (rendered==null) {
+			return false;
+		}
+		
+		// replace an unacknowledged notification instead of queueing behind it,
+		// which is no loss, only retransmissions count in handleRetransmission
+		boolean replace = observer.pending!=null && Communicator.getInstance().getTransactionLayer().supersedeTransaction(observer.pending);
+				
+		messageType type;
+		
+		// check, a deferred check stays due for the next notification
+		if (refresh || replace || (--observer.check <= 0 && !deferCheck)) {
+			type = messageType.CON;
+			observer.check = observer.confirmInterval;
+		} else if (observer.multicast && shard.published) {
+			// received through the multicast group
+			notified(observer, shard);
+			return false;
+		} else {
+			type = messageType.NON;
+		}
+		
+		try {
+			Response notification;
+			
+			if (rendered.getPayloadSource()!=null) {
+				// sources are read by the transfer and cannot be shared
+				GETRequest request = observer.toRequest();
+				request.setType(type);
+				request.markAnswered();
+				shard.resource.performGET(request);
+				notification = request.getResponse();
+			} else {
+				// share representation
+				notification = copy(rendered);
+				notification.setRequest(observer.representation.request);
+				notification.setPeerAddress(observer.peer);
+				notification.setToken(observer.token);
 			}
-			// get resource map for given client address
-			Map<String, ObservingRelationship> clientObservees = observersByClient.get(request.getPeerAddress().toString());
-			if (clientObservees==null) {
-				// lazy creation
-				clientObservees = new HashMap<String, ObservingRelationship>();
-				observersByClient.put(request.getPeerAddress().toString(), clientObservees);
+			
+			notification.setType(type);
+			prepareResponse(observer, notification);
+			
+			observer.pending = notification.isConfirmable() ? notification : null;
+			notification.send();
+			
+		} catch (RuntimeException e) {
+			LOG.severe(String.format("Failed to notify observer %s @ %s: %s", observer.peer, observer.resourcePath, e.getMessage()));
+		}
+		
+		notified(observer, shard);
+		
+		return type==messageType.CON;
+	}
+	
+	/**
+	 * Publishes a notification to the multicast group of a resource.
+	 * 
+	 * @return true if the notification was sent
+	 */
+	private boolean publish(ResourceObservers shard, LocalResource resource, Response rendered) {
+		
+		EndpointAddress group = resource.getMulticastGroup();
+		
+		// blockwise transfers are not possible through a group
+		if (group==null || rendered==null || rendered.getPayloadSource()!=null || rendered.payloadSize() > Properties.std.getInt("DEFAULT_BLOCK_SIZE")) {
+			return false;
+		}
+		
+		Response notification = copy(rendered);
+		notification.setType(messageType.NON);
+		notification.setToken(resource.getMulticastToken());
+		notification.setOption(new Option(shard.groupSequence, OptionNumberRegistry.OBSERVE));
+		notification.setPeerAddress(group);
+		
+		try {
+			notification.send();
+		} catch (RuntimeException e) {
+			LOG.severe(String.format("Failed to publish notification to %s @ %s: %s", group, resource.getPath(), e.getMessage()));
+			return false;
+		}
+		
+		LOG.fine(String.format("Published notification to %s @ %s", group, resource.getPath()));
+		
+		return true;
+	}
+	
+	/**
+	 * Copies a rendered response for another notification, sharing the payload.
+	 */
+	private static Response copy(Response rendered) {
+		
+		Response notification = new Response(rendered.getCode());
+		for (Option option : rendered.getOptions()) {
+			switch (option.getOptionNumber()) {
+			case OptionNumberRegistry.TOKEN:
+			case OptionNumberRegistry.OBSERVE:
+			case OptionNumberRegistry.BLOCK1:
+			case OptionNumberRegistry.BLOCK2:
+				break;
+			default:
+				notification.addOption(option);
 			}
+		}
+		notification.setPayload(rendered.getPayload());
+		
+		return notification;
+	}
+	
+	/**
+	 * Updates the rate control of an observer after a notification was sent.
+	 */
+	private void notified(ObservingRelationship observer, ResourceObservers shard) {
+		
+		observer.lastNotified = System.currentTimeMillis();
+		
+		if (observer.maximumPeriod > 0) {
+			schedule(observer, shard, observer.maximumPeriod);
+		} else {
+			cancelScheduled(observer);
+		}
+	}
+	
+	/**
+	 * Updates the health of an observer when a CON notification was
+	 * acknowledged. Called by the TransactionLayer.
+	 * 
+	 * @param notification the acknowledged notification
+	 * @param retransmissions the number of retransmissions it needed
+	 * @param latency the time from the last transmission to the ACK
+	 */
+	public void handleAcknowledgement(Response notification, int retransmissions, long latency) {
+		
+		ObservingRelationship observer = findObserver(notification);
+		
+		if (observer==null) {
+			return;
+		}
+		
+		synchronized (observer) {
+			
+			// retransmissions were counted as losses by handleRetransmission
+			observer.loss -= observer.loss / 8d;
 			
-			// save relationship for notifications triggered by resource
-			resourceObservers.put(request.getPeerAddress().toString(), toAdd);
-			// save relationship for actions triggered by client
-			clientObservees.put(resource.getPath(), toAdd);
+			observer.rtt = observer.rtt < 0 ? latency : (7 * observer.rtt + latency) / 8;
 			
-			LOG.info(String.format("Established observing relationship: %s @ %s", request.getPeerAddress().toString(), resource.getPath()));
+			if (retransmissions > 0) {
+				// fall back to less frequent checks for observers that fall behind
+				observer.confirmInterval = Math.min(observer.confirmInterval * 2, checkInterval * 8);
+			} else {
+				observer.confirmInterval = checkInterval;
+			}
+			observer.check = Math.min(observer.check, observer.confirmInterval);
 			
+			LOG.finer(String.format("Observer health of %s @ %s: loss %.2f, RTT %dms, CON every %d", observer.peer, observer.resourcePath, observer.loss, observer.rtt, observer.confirmInterval));
+		}
+	}
+	
+	/**
+	 * Updates the health of an observer when a CON notification is about to
+	 * be retransmitted, and evicts the observer if it became unhealthy.
+	 * Called by the TransactionLayer.
+	 * 
+	 * @param notification the notification to retransmit
+	 * @return false if the observer was evicted and the notification must not be retransmitted
+	 */
+	public boolean handleRetransmission(Response notification) {
+		
+		ObservingRelationship observer = findObserver(notification);
+		
+		if (observer==null) {
+			return true;
+		}
+		
+		boolean evict;
+		
+		synchronized (observer) {
+			observer.loss += (1d - observer.loss) / 8d;
+			evict = evictionLoss > 0 && observer.loss > evictionLoss;
+		}
+		
+		if (evict) {
+			evict(observer);
+			return false;
+		}
+		return true;
+	}
+	
+	private synchronized void evict(ObservingRelationship observer) {
+		
+		ResourceObservers resourceObservers = observersByResource.get(observer.resourcePath);
+		Map<String, ObservingRelationship> clientObservees = observersByClient.get(observer.peer);
+		
+		if (resourceObservers!=null && clientObservees!=null && resourceObservers.observers.get(observer.peer)==observer) {
+			resourceObservers.observers.remove(observer.peer);
+			clientObservees.remove(observer.resourcePath);
+			cancel(observer);
+			
+			LOG.info(String.format("Evicted unhealthy observer: %s @ %s (loss %.2f)", observer.peer, observer.resourcePath, observer.loss));
+		}
+	}
+	
+	private ObservingRelationship findObserver(Response notification) {
+		
+		Map<String, ObservingRelationship> clientObservees = notification.getPeerAddress()!=null ? observersByClient.get(notification.getPeerAddress()) : null;
+		
+		if (clientObservees!=null) {
+			for (ObservingRelationship observer : clientObservees.values()) {
+				if (Arrays.equals(observer.token, notification.getToken())) {
+					return observer;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Prepares a response to an observer as notification, called while
+	 * holding its lock.
+	 */
+	private void prepareResponse(ObservingRelationship observer, Response notification) {
+		
+		// consecutive response require new MID that must be stored for RST matching
+		if (notification.getMID()==-1) {
+			notification.setMID(TransactionLayer.nextMessageID());
+		}
+		
+		// 24-bit sequence number, shared with the multicast group that uses the same token
+		ResourceObservers shard = observer.multicast ? observersByResource.get(observer.resourcePath) : null;
+		if (shard!=null) {
+			observer.sequence = shard.groupSequence;
+		} else {
+			observer.sequence = (observer.sequence + 1) & SEQUENCE_MASK;
+		}
+		notification.setOption(new Option(observer.sequence, OptionNumberRegistry.OBSERVE));
+		
+		// store MID for RST matching, a piggy-backed response carries the MID of the client and cannot be reset
+		if (notification.getType()!=messageType.ACK) {
+			updateLastMID(observer, notification.getMID());
+		}
+	}
+	
+	private void updateLastMID(ObservingRelationship observer, int mid) {
+		
+		if (observer.removed) {
+			return;
+		}
+		
+		observersByMID.remove(observer.lastMID, observer);
+		observer.lastMID = mid;
+		observersByMID.put(mid, observer);
+	}
+	
+	
+	public synchronized void addObserver(GETRequest request, LocalResource resource) {
+		
+		request.setObserving(true);
+		
+		ResourceObservers resourceObservers = getResourceObservers(resource);
+		
+		ObservingRelationship toAdd = new ObservingRelationship(request, resourceObservers);
+		
+		register(toAdd, resourceObservers);
+		
+		if (store!=null) {
+			store.add(toAdd.toRequest(), toAdd.resourcePath, toAdd.sequence);
+		}
+		
+		LOG.info(String.format("Established observing relationship: %s @ %s", request.getPeerAddress().toString(), resource.getPath()));
+		
+		synchronized (toAdd) {
 			// update response
-			prepareResponse(request);
+			prepareResponse(toAdd, request.getResponse());
+			
+			// the response is the first notification
+			notified(toAdd, resourceObservers);
 		}
+	}
+	
+	/**
+	 * Restores the persisted observing relationships of a resource and its
+	 * sub-resources after a restart. Notifications continue without new
+	 * registrations by the clients.
+	 * 
+	 * @param resource the resource added to the endpoint
+	 */
+	public synchronized void restoreObservers(LocalResource resource) {
 		
+		if (store==null) {
+			return;
+		}
+		
+		if (resource.isObservable()) {
+			
+			int count = 0;
+			
+			for (ObservingStore.Record record : store.take(resource.getPath())) {
+				
+				ResourceObservers resourceObservers = getResourceObservers(resource);
+				
+				ObservingRelationship toAdd = new ObservingRelationship(record.request, resourceObservers);
+				toAdd.sequence = (record.sequence + SEQUENCE_RESTORE_GAP) & SEQUENCE_MASK;
+				
+				register(toAdd, resourceObservers);
+				
+				synchronized (toAdd) {
+					notified(toAdd, resourceObservers);
+				}
+				
+				++count;
+			}
+			
+			if (count > 0) {
+				LOG.info(String.format("Restored observing relationships: %d @ %s", count, resource.getPath()));
+			}
+		}
+		
+		for (Resource sub : resource.getSubResources()) {
+			if (sub instanceof LocalResource) {
+				restoreObservers((LocalResource) sub);
+			}
+		}
+	}
+	
+	/**
+	 * Passes all relationships to the snapshot of the store. The lock only
+	 * covers collecting them, the store writes the snapshot on its own thread
+	 * after all changes recorded before.
+	 */
+	private synchronized void snapshot() {
+		
+		List<ObservingStore.Record> records = new ArrayList<ObservingStore.Record>();
+		
+		for (ResourceObservers resourceObservers : observersByResource.values()) {
+			for (ObservingRelationship observer : resourceObservers.observers.values()) {
+				synchronized (observer) {
+					records.add(new ObservingStore.Record(observer.toRequest(), observer.resourcePath, observer.sequence));
+				}
+			}
+		}
+		
+		store.snapshot(records);
 	}
 	
-	public synchronized void removeObserver(String clientID) {
+	private ResourceObservers getResourceObservers(LocalResource resource) {
+		
+		String path = resource.getPath();
+		
+		// get clients map for the given resource path
+		ResourceObservers resourceObservers = observersByResource.get(path);
+		if (resourceObservers==null) {
+			// lazy creation
+			resourceObservers = new ResourceObservers();
+			resourceObservers.resource = resource;
+			resourceObservers.path = path;
+			observersByResource.put(path, resourceObservers);
+		}
+		return resourceObservers;
+	}
+	
+	private void register(ObservingRelationship toAdd, ResourceObservers resourceObservers) {
+		
+		// get resource map for given client address
+		Map<String, ObservingRelationship> clientObservees = observersByClient.get(toAdd.peer);
+		if (clientObservees==null) {
+			// lazy creation
+			clientObservees = new ConcurrentHashMap<String, ObservingRelationship>();
+			observersByClient.put(toAdd.peer, clientObservees);
+		}
+		
+		// save relationship for notifications triggered by resource
+		ObservingRelationship replaced = resourceObservers.observers.put(toAdd.peer, toAdd);
+		// save relationship for actions triggered by client
+		clientObservees.put(toAdd.resourcePath, toAdd);
+		
+		if (replaced!=null) {
+			// continue the sequence so that the client does not discard the new notifications as old ones
+			synchronized (replaced) {
+				toAdd.sequence = replaced.sequence;
+			}
+			cancel(replaced);
+		}
+	}
+	
+	public synchronized void removeObserver(EndpointAddress peer) {
 
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		Map<String, ObservingRelationship> clientObservees = observersByClient.get(peer);
 		
 		if (clientObservees!=null) {
 
-			synchronized(this) {
-			for (Map<String, ObservingRelationship> entry : observersByResource.values()) {
-				entry.remove(clientID);
-			}
-			observersByClient.remove(clientID);
+			for (Map.Entry<String, ObservingRelationship> entry : clientObservees.entrySet()) {
+				ResourceObservers resourceObservers = observersByResource.get(entry.getKey());
+				if (resourceObservers!=null) {
+					resourceObservers.observers.remove(peer);
+				}
+				cancel(entry.getValue());
 			}
+			observersByClient.remove(peer);
 			
-			LOG.info(String.format("Terminated all observing relationships for client: %s", clientID));
+			LOG.info(String.format("Terminated all observing relationships for client: %s", peer));
 			
 		}
 	}
@@ -229,87 +1287,76 @@ public class ObservingManager {
 	/**
 	 * Remove an observer by missing Observe option in GET.
 	 * 
-	 * @param clientID the peer address as string
+	 * @param peer the peer address
 	 * @param resource the resource to un-observe.
 	 */
-	public synchronized void removeObserver(String clientID, LocalResource resource) {
+	public synchronized void removeObserver(EndpointAddress peer, LocalResource resource) {
 		
-		Map<String, ObservingRelationship> resourceObservers = observersByResource.get(resource.getPath());
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		ResourceObservers resourceObservers = observersByResource.get(resource.getPath());
+		Map<String, ObservingRelationship> clientObservees = observersByClient.get(peer);
 		
 		if (resourceObservers!=null && clientObservees!=null) {
-			synchronized(this) {
-				if (resourceObservers.remove(clientID)!=null && clientObservees.remove(resource.getPath())!=null) {
-					LOG.info(String.format("Terminated observing relationship by GET: %s @ %s", clientID, resource.getPath()));
-					return;
-				}
+			ObservingRelationship toRemove = resourceObservers.observers.remove(peer);
+			if (toRemove!=null && clientObservees.remove(resource.getPath())!=null) {
+				cancel(toRemove);
+				LOG.info(String.format("Terminated observing relationship by GET: %s @ %s", peer, resource.getPath()));
+				return;
 			}
 		}
 		
 		// should not be called if not existent
-		LOG.warning(String.format("Cannot find observing relationship: %s @ %s", clientID, resource.getPath()));
+		LOG.warning(String.format("Cannot find observing relationship: %s @ %s", peer, resource.getPath()));
 	}
 	
 	/**
 	 * Remove an observer by MID from RST.
 	 * 
-	 * @param clientID the peer address as string
+	 * @param peer the peer address
 	 * @param mid the MID from the RST
 	 */
-	public void removeObserver(String clientID, int mid) {
+	public synchronized void removeObserver(EndpointAddress peer, int mid) {
 		
-		ObservingRelationship toRemove = null;
-
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		ObservingRelationship toRemove = observersByMID.get(mid);
+		Map<String, ObservingRelationship> clientObservees = observersByClient.get(peer);
 		
-		if (clientObservees!=null) {
-			for (ObservingRelationship entry : clientObservees.values()) {
-				if (mid==entry.lastMID && clientID.equals(entry.clientID)) {
-					// found it
-					toRemove = entry;
-					break;
-				}
-			}
-		}
-		
-		if (toRemove!=null) {
-			synchronized(this) {
-				Map<String, ObservingRelationship> resourceObservers = observersByResource.get(toRemove.resourcePath);
-				
-				// FIXME Inconsistent state check
-				if (resourceObservers==null) {
-					LOG.severe(String.format("FIXME: ObservingManager has clientObservee, but no resourceObservers (%s @ %s)", clientID, toRemove.resourcePath));
-				}
+		if (toRemove!=null && toRemove.peer.equals(peer) && clientObservees!=null) {
+			ResourceObservers resourceObservers = observersByResource.get(toRemove.resourcePath);
+			
+			// FIXME Inconsistent state check
+			if (resourceObservers==null) {
+				LOG.severe(String.format("FIXME: ObservingManager has clientObservee, but no resourceObservers (%s @ %s)", peer, toRemove.resourcePath));
 				
-				if (resourceObservers.remove(clientID)!=null && clientObservees.remove(toRemove.resourcePath)!=null) {
-					LOG.info(String.format("Terminated observing relationship by RST: %s @ %s", clientID, toRemove.resourcePath));
-					return;
-				}
+			} else if (resourceObservers.observers.remove(peer)!=null && clientObservees.remove(toRemove.resourcePath)!=null) {
+				cancel(toRemove);
+				LOG.info(String.format("Terminated observing relationship by RST: %s @ %s", peer, toRemove.resourcePath));
+				return;
 			}
 		}
 		
-		LOG.warning(String.format("Cannot find observing relationship by MID: %s|%d", clientID, mid));
+		LOG.warning(String.format("Cannot find observing relationship by MID: %s|%d", peer, mid));
 	}
 
-	public boolean isObserved(String clientID, LocalResource resource) {
-		return observersByClient.containsKey(clientID) &&
-				observersByClient.get(clientID).containsKey(resource.getPath());
+	public boolean isObserved(EndpointAddress peer, LocalResource resource) {
+		Map<String, ObservingRelationship> clientObservees = observersByClient.get(peer);
+		return clientObservees!=null && clientObservees.containsKey(resource.getPath());
 	}
 
-	public void updateLastMID(String clientID, String path, int mid) {
+	public void updateLastMID(EndpointAddress peer, String path, int mid) {
 		
-		Map<String, ObservingRelationship> clientObservees = observersByClient.get(clientID);
+		Map<String, ObservingRelationship> clientObservees = observersByClient.get(peer);
 		
 		if (clientObservees!=null) {
 			ObservingRelationship toUpdate = clientObservees.get(path);
 			if (toUpdate!=null) {
-				toUpdate.lastMID = mid;
-				
-				LOG.finer(String.format("Updated last MID for observing relationship: %s @ %s", clientID, toUpdate.resourcePath));
+				synchronized (toUpdate) {
+					updateLastMID(toUpdate, mid);
+				}
+								
+				LOG.finer(String.format("Updated last MID for observing relationship: %s @ %s", peer, toUpdate.resourcePath));
 				return;
 			}
 		}
 		
-		LOG.warning(String.format("Cannot find observing relationship to update MID: %s @ %s", clientID, path));
+		LOG.warning(String.format("Cannot find observing relationship to update MID: %s @ %s", peer, path));
 	}
 }
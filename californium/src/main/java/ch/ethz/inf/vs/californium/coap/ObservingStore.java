@@ -0,0 +1,415 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The ObservingStore persists the observing relationships of a server in a
+ * directory, so that a restarted server continues to notify its observers
+ * without re-registrations. Registrations and terminations are appended to a
+ * journal, which is periodically replaced by a snapshot of all relationships.
+ * <p>
+ * A relationship is stored as the encoded GET request that established it,
+ * together with the peer address and its latest Observe sequence number.
+ * Relationships read on startup are restored when their resource is added to
+ * the endpoint; those not restored until the next snapshot are discarded.
+ * <p>
+ * All changes are encoded and written in order by a writer thread, so callers
+ * do not wait for the disk. An incomplete record at the end of the journal,
+ * e.g., after a crash, is cut off before new records are appended.
+ * 
+ * @author Matthias Kovatsch
+ */
+class ObservingStore {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(ObservingStore.class.getName());
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final String SNAPSHOT = "observers.snapshot";
+	private static final String JOURNAL = "observers.journal";
+	
+	private static final int ADD = 'A';
+	private static final int REMOVE = 'R';
+	
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/**
+	 * A stored observing relationship.
+	 */
+	static class Record {
+		GETRequest request;
+		String path;
+		int sequence;
+		
+		Record(GETRequest request, String path, int sequence) {
+			this.request = request;
+			this.path = path;
+			this.sequence = sequence;
+		}
+	}
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private File directory;
+	
+	/** The journal of changes since the last snapshot, used by the writer only. */
+	private DataOutputStream journal;
+	
+	/** The relationships read on startup that were not restored yet, by resource path and peer address. */
+	private Map<String, Map<String, Record>> pending = new HashMap<String, Map<String, Record>>();
+	
+	/** Writes the changes in the order they were recorded. */
+	private ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ObservingStore");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Opens the store in the given directory and reads the relationships
+	 * stored by a previous run.
+	 * 
+	 * @param directory the directory for the snapshot and journal files
+	 * @throws IOException if the stored files cannot be read or the journal
+	 *             cannot be opened
+	 */
+	ObservingStore(File directory) throws IOException {
+		
+		this.directory = directory;
+		
+		directory.mkdirs();
+		
+		read(new File(directory, SNAPSHOT));
+		
+		File file = new File(directory, JOURNAL);
+		long valid = read(file);
+		
+		// records appended behind an incomplete one could not be read again
+		if (file.length() > valid) {
+			truncate(file, valid);
+		}
+		
+		journal = open(file, true);
+		
+		int count = 0;
+		for (Map<String, Record> records : pending.values()) {
+			count += records.size();
+		}
+		LOG.info(String.format("Read %d stored observing relationships from %s", count, directory));
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the stored relationships of a resource that were not restored
+	 * yet.
+	 * 
+	 * @param path the resource path
+	 * @return the relationships, removed from the pending ones
+	 */
+	synchronized Collection<Record> take(String path) {
+		Map<String, Record> records = pending.remove(path);
+		return records!=null ? records.values() : Collections.<Record>emptyList();
+	}
+	
+	/**
+	 * Records a new observing relationship.
+	 */
+	void add(GETRequest request, String path, int sequence) {
+		
+		final Record record = new Record(request, path, sequence);
+		
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					write(journal, record);
+					journal.flush();
+				} catch (IOException e) {
+					LOG.severe(String.format("Failed to store observing relationship %s @ %s: %s", record.request.getPeerAddress(), record.path, e.getMessage()));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Records the termination of an observing relationship.
+	 */
+	void remove(final String clientID, final String path) {
+		
+		writer.execute(new Runnable() {
+			public void run() {
+				try {
+					journal.writeByte(REMOVE);
+					journal.writeUTF(path);
+					journal.writeUTF(clientID);
+					journal.flush();
+				} catch (IOException e) {
+					LOG.severe(String.format("Failed to store terminated observing relationship %s @ %s: %s", clientID, path, e.getMessage()));
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Replaces the snapshot with the given relationships and starts a new
+	 * journal. The caller must ensure that no changes are recorded
+	 * concurrently, so that the snapshot contains all changes recorded
+	 * before and none recorded after it.
+	 * 
+	 * @param records all current relationships
+	 */
+	void snapshot(final List<Record> records) {
+		
+		// relationships of resources that were not added are discarded
+		synchronized (this) {
+			pending.clear();
+		}
+		
+		writer.execute(new Runnable() {
+			public void run() {
+				writeSnapshot(records);
+			}
+		});
+	}
+	
+	/**
+	 * Writes all recorded changes and closes the journal.
+	 */
+	void close() {
+		
+		writer.shutdown();
+		
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			journal.close();
+		} catch (InterruptedException e) {
+			LOG.warning("Interrupted while closing the observing store");
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to close observing journal: %s", e.getMessage()));
+		}
+	}
+	
+	private void writeSnapshot(List<Record> records) {
+		
+		File file = new File(directory, SNAPSHOT);
+		File temp = new File(directory, SNAPSHOT + ".tmp");
+		
+		try {
+			DataOutputStream out = open(temp, false);
+			try {
+				for (Record record : records) {
+					write(out, record);
+				}
+			} finally {
+				out.close();
+			}
+			
+			if (!temp.renameTo(file)) {
+				// required on some platforms
+				file.delete();
+				if (!temp.renameTo(file)) {
+					throw new IOException("Cannot replace " + file);
+				}
+			}
+			
+			journal.close();
+			journal = open(new File(directory, JOURNAL), false);
+			
+			LOG.fine(String.format("Stored snapshot of %d observing relationships", records.size()));
+			
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to store snapshot of observing relationships: %s", e.getMessage()));
+		}
+	}
+	
+	private static DataOutputStream open(File file, boolean append) throws FileNotFoundException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+	}
+	
+	private static void truncate(File file, long length) throws IOException {
+		
+		LOG.warning(String.format("Truncating %s to %d bytes", file, length));
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static void write(DataOutputStream out, Record record) throws IOException {
+		
+		EndpointAddress peer = record.request.getPeerAddress();
+		byte[] address = peer.getAddress().getAddress();
+		byte[] encoded = record.request.toByteArray();
+		
+		out.writeByte(ADD);
+		out.writeUTF(record.path);
+		out.writeByte(address.length);
+		out.write(address);
+		out.writeShort(peer.getPort());
+		out.writeInt(record.sequence);
+		out.writeShort(encoded.length);
+		out.write(encoded);
+	}
+	
+	/**
+	 * Reads the records of a file into the pending relationships. Reading
+	 * stops at an incomplete or corrupt record.
+	 * 
+	 * @return the length of the complete records at the start of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	private long read(File file) throws IOException {
+		
+		if (!file.exists()) {
+			return 0;
+		}
+		
+		byte[] data = new byte[(int) file.length()];
+		
+		DataInputStream stream = new DataInputStream(new FileInputStream(file));
+		try {
+			stream.readFully(data);
+		} finally {
+			stream.close();
+		}
+		
+		ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+		DataInputStream in = new DataInputStream(bytes);
+		long valid = 0;
+		
+		try {
+			while (true) {
+				int op = in.read();
+				
+				if (op==ADD) {
+					String path = in.readUTF();
+					byte[] address = new byte[in.readUnsignedByte()];
+					in.readFully(address);
+					int port = in.readUnsignedShort();
+					int sequence = in.readInt();
+					byte[] encoded = new byte[in.readUnsignedShort()];
+					in.readFully(encoded);
+					
+					restore(path, address, port, sequence, encoded);
+					
+				} else if (op==REMOVE) {
+					String path = in.readUTF();
+					String clientID = in.readUTF();
+					
+					Map<String, Record> records = pending.get(path);
+					if (records!=null) {
+						records.remove(clientID);
+					}
+					
+				} else if (op==-1) {
+					break;
+				} else {
+					LOG.warning(String.format("Ignoring corrupt records at the end of %s", file));
+					break;
+				}
+				
+				valid = data.length - bytes.available();
+			}
+		} catch (EOFException e) {
+			// incomplete record written during a crash
+			LOG.warning(String.format("Ignoring incomplete record at the end of %s", file));
+		}
+		
+		return valid;
+	}
+	
+	/**
+	 * Adds a relationship read from a file to the pending ones, skipping it
+	 * if it cannot be decoded.
+	 */
+	private void restore(String path, byte[] address, int port, int sequence, byte[] encoded) {
+		
+		GETRequest request;
+		
+		try {
+			Message msg = Message.fromByteArray(encoded);
+			if (!(msg instanceof GETRequest)) {
+				LOG.warning(String.format("Skipping invalid stored observing relationship @ %s", path));
+				return;
+			}
+			
+			request = (GETRequest) msg;
+			request.setPeerAddress(new EndpointAddress(InetAddress.getByAddress(address), port));
+			
+		} catch (UnknownHostException e) {
+			LOG.warning(String.format("Skipping stored observing relationship with invalid address @ %s", path));
+			return;
+		} catch (RuntimeException e) {
+			LOG.warning(String.format("Skipping undecodable stored observing relationship @ %s: %s", path, e.getMessage()));
+			return;
+		}
+		
+		Map<String, Record> records = pending.get(path);
+		if (records==null) {
+			records = new HashMap<String, Record>();
+			pending.put(path, records);
+		}
+		records.put(request.getPeerAddress().toString(), new Record(request, path, sequence));
+	}
+}
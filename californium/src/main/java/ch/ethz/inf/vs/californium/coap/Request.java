@@ -49,6 +49,15 @@ import ch.ethz.inf.vs.californium.endpoint.LocalResource;
  * <li>by registering a handler using {@link #registerResponseHandler(ResponseHandler)}
  * <li>by calling the blocking method {@link #receiveResponse()}
  * </ol>
+ * Large blockwise response bodies can be streamed by enabling
+ * {@link #enableResponseStreaming(boolean)} and overriding
+ * {@link #responsePayloadAppended(Response, byte[])}. Large bodies that were
+ * buffered in a file are released after the handlers returned, unless the
+ * response is queued for {@link #receiveResponse()}; to keep such a body,
+ * take its {@link Message#getPayloadStream()} in the handler.
+ * <p>
+ * A client can limit the time it waits for a response using
+ * {@link #setTimeout(int)} and abort the request using {@link #cancel()}.
  * 
  * @author Dominique Im Obersteg, Daniel Pauli, and Matthias Kovatsch
  */
@@ -78,7 +87,18 @@ public class Request extends Message {
 	/** The number of responses to this request. */
 	private int responseCount;
 	
+	/** Set while the empty ACK is being sent, separate responses wait for it. */
+	private boolean accepting;
+	
 	private boolean isObserving = false;
+	
+	/** The overall time limit for the exchange, 0 for the default. */
+	private int timeout = 0;
+	
+	/** Hands blockwise response bodies to the application block by block. */
+	private boolean streamResponse = false;
+
+	private volatile boolean canceled = false;
 
 // Constructors ////////////////////////////////////////////////////////////////
 
@@ -115,6 +135,72 @@ public class Request extends Message {
 	}
 	
 	
+	/**
+	 * Cancels the request. Retransmissions are stopped, and the token and all
+	 * exchange state are released immediately. An observe relationship is
+	 * torn down by a GET without Observe option to the same resource. A
+	 * thread blocked in {@link #receiveResponse()} returns null.
+	 */
+	public void cancel() {
+		
+		if (canceled) {
+			return;
+		}
+		canceled = true;
+		
+		if (Communicator.getInstance().cancel(this)) {
+			
+			LOG.info(String.format("Canceled request: %s", sequenceKey()));
+			
+			if (hasOption(OptionNumberRegistry.OBSERVE)) {
+				
+				// deregister at the server
+				Request deregister = new GETRequest();
+				for (Option opt : getOptions()) {
+					if (opt.getOptionNumber()!=OptionNumberRegistry.OBSERVE && opt.getOptionNumber()!=OptionNumberRegistry.TOKEN) {
+						deregister.addOption(opt);
+					}
+				}
+				deregister.setPeerAddress(getPeerAddress());
+				deregister.send();
+			}
+		}
+		
+		// unblock receiveResponse()
+		if (responseQueueEnabled()) {
+			responseQueue.offer(TIMEOUT_RESPONSE);
+		}
+	}
+	
+	/**
+	 * Checks if the request was canceled using {@link #cancel()}.
+	 * 
+	 * @return true if canceled
+	 */
+	public boolean isCanceled() {
+		return canceled;
+	}
+	
+	/**
+	 * Returns the time limit for the exchange.
+	 * 
+	 * @return the timeout in milliseconds, or 0 for DEFAULT_OVERALL_TIMEOUT
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+	
+	/**
+	 * Sets the overall time limit to wait for a response, counted from
+	 * sending the request. It covers retransmissions, separate responses,
+	 * and blockwise transfers. Set it before executing the request.
+	 * 
+	 * @param timeout the timeout in milliseconds, or 0 for DEFAULT_OVERALL_TIMEOUT
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+	
 	public void setResource(LocalResource resouce) {
 		this.resource = resouce;
 	}
@@ -122,12 +208,48 @@ public class Request extends Message {
 	/**
 	 * Overrides {@link Message#accept()} to keep track of the response count,
 	 * which is required to manage MIDs for exchanges over multiple
-	 * transactions.
+	 * transactions. Requests that were already accepted or answered are
+	 * not acknowledged again. A response issued while the ACK is being sent,
+	 * e.g., from another thread, is only sent after the ACK.
 	 */
 	@Override
 	public void accept() {
-		++this.responseCount;
-		super.accept();
+		synchronized (this) {
+			if (responseCount > 0) {
+				return;
+			}
+			++this.responseCount;
+			accepting = true;
+		}
+		try {
+			super.accept();
+		} finally {
+			synchronized (this) {
+				accepting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Checks if a response or an empty ACK was already issued for this
+	 * request, i.e., a piggy-backed response is no longer possible.
+	 *
+	 * @return true if the request was accepted or answered
+	 */
+	public synchronized boolean isAnswered() {
+		return responseCount > 0;
+	}
+	
+	/**
+	 * Marks a request as answered without sending anything, so that further
+	 * responses are sent separately. Used for observing relationships that
+	 * are restored after a restart.
+	 */
+	synchronized void markAnswered() {
+		if (responseCount == 0) {
+			++this.responseCount;
+		}
 	}
 
 	public Response getResponse() {
@@ -149,15 +271,32 @@ public class Request extends Message {
 		response.setRequest(this);
 
 		response.setPeerAddress( getPeerAddress() );
+		
+		// only the first response can be piggy-backed, sending is done without holding the lock
+		boolean first;
+		synchronized (this) {
+			first = responseCount == 0;
+			++this.responseCount;
+			
+			// a separate response must not overtake the empty ACK
+			while (accepting) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
 
 		// set matching MID for replies
-		if (responseCount == 0 && isConfirmable()) {
+		if (first && isConfirmable()) {
 			response.setMID(getMID());
 		}
 
 		// set matching type
 		if (response.getType() == null) {
-			if (responseCount == 0 && isConfirmable()) {
+			if (first && isConfirmable()) {
 				// use piggy-backed response
 				response.setType(messageType.ACK);
 			} else {
@@ -184,8 +323,6 @@ public class Request extends Message {
 			LOG.severe("FIXME: Called with EMPTY MESSAGE");	// FIXME Unsure about execution path, check
 		}
 		
-		++this.responseCount;
-		
 		setResponse(response);
 		
 		sendResponse();
@@ -223,6 +360,23 @@ public class Request extends Message {
 		respond(response);
 	}
 
+	/**
+	 * Respond this request with a body that is produced block by block.
+	 * 
+	 * @param code the status code
+	 * @param body the source of the body
+	 * @param contentType the Content-Type of the body
+	 */
+	public void respond(int code, BlockSource body, int contentType) {
+		Response response = new Response(code);
+		response.setPayload(body);
+		response.setContentType(contentType);
+		
+		LOG.finest(String.format("Responding with Content-Type %d: %d bytes from source", contentType, body.size()));
+		
+		respond(response);
+	}
+
 	/**
 	 * Respond this request.
 	 *
@@ -245,10 +399,10 @@ public class Request extends Message {
 						// establish new observation relationship
 						ObservingManager.getInstance().addObserver((GETRequest) this, this.resource);
 	
-					} else if (ObservingManager.getInstance().isObserved(this.getPeerAddress().toString(), this.resource)) {
+					} else if (ObservingManager.getInstance().isObserved(this.getPeerAddress(), this.resource)) {
 	
 						// terminate observation relationship on that resource
-						ObservingManager.getInstance().removeObserver(this.getPeerAddress().toString(), this.resource);
+						ObservingManager.getInstance().removeObserver(this.getPeerAddress(), this.resource);
 					}
 					
 				}
@@ -260,6 +414,9 @@ public class Request extends Message {
 					handleResponse(currentResponse);
 				}
 			}
+			
+			// the body of an answered request is no longer needed
+			dispose();
 		} else {
 			LOG.warning(String.format("Missing response to send: Request %s for %s", key(), getUriPath()));
 		}
@@ -272,6 +429,9 @@ public class Request extends Message {
 	 * NOTE: In order to safely use this method, the call
 	 * {@link #enableResponseQueue(true)} is required BEFORE any possible
 	 * {@link #respond()} calls take place.
+	 * 
+	 * The caller owns the returned response and must read a large body or
+	 * release it with {@link Message#dispose()}.
 	 *
 	 * @return the next response in the queue
 	 * @throws InterruptedException the interrupted exception
@@ -344,6 +504,50 @@ public class Request extends Message {
 	public boolean responseQueueEnabled() {
 		return responseQueue != null;
 	}
+	
+	/**
+	 * Enables or disables streaming of blockwise response bodies. When
+	 * enabled, each block is passed to
+	 * {@link #responsePayloadAppended(Response, byte[])} in order, followed by
+	 * {@link #responseCompleted(Response)}. The response is then handled
+	 * without payload. Fetching pauses while the application falls behind.
+	 * Responses that fit into a single message keep their payload.
+	 * 
+	 * @param enable true to enable, false to disable
+	 */
+	public void enableResponseStreaming(boolean enable) {
+		this.streamResponse = enable;
+	}
+	
+	/**
+	 * Checks if response streaming is enabled.
+	 * 
+	 * @return true, if blockwise response bodies are streamed
+	 */
+	public boolean responseStreamingEnabled() {
+		return streamResponse;
+	}
+	
+	/**
+	 * Passes a block of a streamed response body to the application. Called
+	 * by the TransferLayer.
+	 * 
+	 * @param response the first response of the transfer
+	 * @param block the payload of the block
+	 */
+	public void handleResponseBlock(Response response, byte[] block) {
+		responsePayloadAppended(response, block);
+	}
+	
+	/**
+	 * Signals the end of a streamed response body to the application. Called
+	 * by the TransferLayer.
+	 * 
+	 * @param response the first response of the transfer
+	 */
+	public void handleResponseCompleted(Response response) {
+		responseCompleted(response);
+	}
 
 // Subclassing /////////////////////////////////////////////////////////////////
 
@@ -372,7 +576,9 @@ public class Request extends Message {
 	}
 
 	/**
-	 * Response payload appended.
+	 * This method is called for each block of a streamed response body, in
+	 * order and from a thread shared by the response streams. Further blocks
+	 * are fetched while it works, but fetching pauses if it falls behind.
 	 *
 	 * @param response the response
 	 * @param block the block
@@ -382,7 +588,8 @@ public class Request extends Message {
 	}
 
 	/**
-	 * Response completed.
+	 * This method is called after the last block of a streamed response body,
+	 * before the response is handled.
 	 *
 	 * @param response the response
 	 */
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.net.URI;
+
+/**
+ * A Subscription observes a remote resource on behalf of a client. It is
+ * created by {@link SubscriptionManager#subscribe(URI, ResponseHandler)},
+ * which passes the notifications to the handler in order and re-registers
+ * the subscription when the server stops sending notifications.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class Subscription {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The URI of the observed resource. */
+	final URI uri;
+	
+	/** The handler for the notifications. */
+	final ResponseHandler handler;
+	
+	// the following members are guarded by this
+		
+	/** The request of the current registration. */
+	Request request;
+	
+	/** The Observe value of the latest notification, -1 before the first one. */
+	int lastObserve = -1;
+	
+	/** The time the latest notification arrived. */
+	long lastNotified;
+	
+	/** The time after which the subscription is re-registered. */
+	long deadline;
+	
+	/** The number of re-registrations. */
+	int reregistrations;
+	
+	/** Cleared when canceled or ended by the server. */
+	boolean active = true;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	Subscription(URI uri, ResponseHandler handler) {
+		this.uri = uri;
+		this.handler = handler;
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Cancels the subscription and deregisters at the server.
+	 */
+	public void cancel() {
+		SubscriptionManager.getInstance().cancel(this);
+	}
+	
+	/**
+	 * Checks whether notifications are still received. A subscription ends
+	 * when it is canceled or when the server answers without Observe option,
+	 * e.g., with an error code.
+	 * 
+	 * @return true if active
+	 */
+	public synchronized boolean isActive() {
+		return active;
+	}
+	
+	public URI getURI() {
+		return uri;
+	}
+	
+	/**
+	 * Returns how often the subscription was re-registered because the
+	 * server fell silent.
+	 * 
+	 * @return the number of re-registrations
+	 */
+	public synchronized int getReregistrations() {
+		return reregistrations;
+	}
+	
+	@Override
+	public String toString() {
+		return uri.toString();
+	}
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.coap;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The SubscriptionManager keeps the observe subscriptions of a client. It
+ * discards notifications that arrive out of order according to their Observe
+ * value, and it re-registers a subscription when no notification arrived
+ * within the Max-Age of the previous one, e.g., after the server lost its
+ * state. Re-registrations are spread by a random jitter, so that a server
+ * restart does not trigger all of them at once.
+ * <p>
+ * All subscriptions are checked by a single timer thread, which allows a
+ * client to hold a large number of them.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class SubscriptionManager {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(SubscriptionManager.class.getName());
+	
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	/** The time after which any Observe value is considered newer. */
+	private static final long REORDER_WINDOW = 128000; // [milliseconds]
+	
+// Static Attributes ///////////////////////////////////////////////////////////
+	
+	private static SubscriptionManager singleton = new SubscriptionManager();
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** All active subscriptions. */
+	private Set<Subscription> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<Subscription, Boolean>());
+	
+	/** The timer daemon to check for silent subscriptions. */
+	private Timer timer = new Timer(true); // run as daemon
+	
+	/** The maximum random delay added to the deadline of a subscription. */
+	private int jitter = Properties.std.getInt("SUBSCRIPTION_JITTER");
+	
+	private Random random = new Random();
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Default singleton constructor.
+	 */
+	private SubscriptionManager() {
+		
+		int interval = Math.max(1, Properties.std.getInt("SUBSCRIPTION_CHECK_INTERVAL"));
+		
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, interval, interval);
+	}
+	
+	public static SubscriptionManager getInstance() {
+		return singleton;
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Observes a remote resource. The handler receives the response to the
+	 * registration and all notifications in order.
+	 * 
+	 * @param uri the URI of the resource
+	 * @param handler the handler for the notifications
+	 * @return the subscription
+	 */
+	public Subscription subscribe(URI uri, ResponseHandler handler) {
+		
+		Subscription subscription = new Subscription(uri, handler);
+		
+		subscriptions.add(subscription);
+		register(subscription);
+		
+		LOG.info(String.format("Subscribed to %s", uri));
+		
+		return subscription;
+	}
+	
+	/**
+	 * Cancels a subscription and deregisters at the server.
+	 * 
+	 * @param subscription the subscription to cancel
+	 */
+	public void cancel(Subscription subscription) {
+		
+		Request request;
+		
+		synchronized (subscription) {
+			if (!subscription.active) {
+				return;
+			}
+			subscription.active = false;
+			request = subscription.request;
+		}
+		
+		subscriptions.remove(subscription);
+		request.cancel();
+		
+		LOG.info(String.format("Canceled subscription to %s", subscription));
+	}
+	
+	/**
+	 * Returns the number of active subscriptions.
+	 * 
+	 * @return the number of subscriptions
+	 */
+	public int size() {
+		return subscriptions.size();
+	}
+	
+	private void register(final Subscription subscription) {
+		
+		Request request = new GETRequest() {
+			@Override
+			protected void handleResponse(Response response) {
+				handleNotification(subscription, this, response);
+			}
+		};
+		request.setURI(subscription.uri);
+		request.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+		
+		synchronized (subscription) {
+			subscription.request = request;
+			subscription.lastObserve = -1;
+			
+			// retried if the registration remains unanswered
+			subscription.deadline = deadline(Option.DEFAULT_MAX_AGE);
+		}
+		
+		request.send();
+	}
+	
+	private void handleNotification(Subscription subscription, Request request, Response response) {
+		
+		Option observe = response.getFirstOption(OptionNumberRegistry.OBSERVE);
+		
+		synchronized (subscription) {
+			
+			// ignore late notifications of a replaced registration
+			if (!subscription.active || subscription.request != request) {
+				return;
+			}
+			
+			long now = System.currentTimeMillis();
+			
+			if (observe == null) {
+				
+				// the server does not keep an observe relationship
+				subscription.active = false;
+				subscriptions.remove(subscription);
+				
+				LOG.info(String.format("Subscription to %s ended by server: %s", subscription, CodeRegistry.toString(response.getCode())));
+				
+			} else {
+				
+				if (subscription.lastObserve >= 0 && now - subscription.lastNotified < REORDER_WINDOW && isOlder(observe.getIntValue(), subscription.lastObserve)) {
+					
+					LOG.fine(String.format("Discarding reordered notification for %s: %d after %d", subscription, observe.getIntValue(), subscription.lastObserve));
+					return;
+				}
+				
+				subscription.lastObserve = observe.getIntValue();
+				subscription.lastNotified = now;
+				subscription.deadline = deadline(response.getMaxAge());
+			}
+		}
+		
+		subscription.handler.handleResponse(response);
+	}
+	
+	/**
+	 * Re-registers subscriptions whose deadline has passed.
+	 */
+	private void check() {
+		
+		long now = System.currentTimeMillis();
+		
+		for (Subscription subscription : subscriptions) {
+			
+			Request silent = null;
+			
+			synchronized (subscription) {
+				if (subscription.active && now > subscription.deadline) {
+					silent = subscription.request;
+					++subscription.reregistrations;
+				}
+			}
+			
+			if (silent != null) {
+				
+				LOG.info(String.format("Re-registering silent subscription to %s", subscription));
+				
+				// the server lost the relationship, release the old exchange without deregistration
+				Communicator.getInstance().cancel(silent);
+				
+				register(subscription);
+			}
+		}
+	}
+	
+	private long deadline(int maxAge) {
+		return System.currentTimeMillis() + maxAge * 1000L + (jitter > 0 ? random.nextInt(jitter) : 0);
+	}
+	
+// Static Methods //////////////////////////////////////////////////////////////
+	
+	/**
+	 * Checks whether a 24-bit Observe value is not newer than another one,
+	 * considering the wrap-around of the sequence. Equal values are
+	 * duplicates.
+	 * 
+	 * @param value the received value
+	 * @param last the value of the latest notification
+	 * @return true if the value precedes or repeats the latest one
+	 */
+	public static boolean isOlder(int value, int last) {
+		return value == last || (value < last && last - value < 0x800000) || (value > last && value - last > 0x800000);
+	}
+}
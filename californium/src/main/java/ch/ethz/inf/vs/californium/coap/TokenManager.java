@@ -30,15 +30,24 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.coap;
 
-import java.io.ByteArrayOutputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.util.Properties;
+
 /**
  * The TokenManager stores all tokens currently used in transfers. New transfers
  * can acquire unique tokens from the manager.
  * 
+ * Tokens have a fixed width of TOKEN_LENGTH bytes and are handled as long
+ * values internally. The upper bits carry a random prefix chosen per stack,
+ * the lower bits a sequence number. Outstanding tokens are stored in a table
+ * of TOKEN_CAPACITY slots indexed by the lowest sequence bits, which are
+ * claimed and freed with compare-and-set, so that no lock is required.
+ * 
  * @author Matthias Kovatsch
  */
 public class TokenManager {
@@ -52,13 +61,31 @@ public class TokenManager {
 	// the empty token, used as default value
 	public static final byte[] emptyToken = new byte[0];
 	
+	// the maximum number of random prefix bits
+	private static final int MAX_PREFIX_BITS = 16;
+	
 	private static TokenManager singleton = new TokenManager();
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Set<byte[]> acquiredTokens = new HashSet<byte[]>();
-
-	private long currentToken;
+	/** The width of the non-empty tokens in bytes. */
+	private final int tokenLength;
+	
+	/** The random prefix, already shifted to the upper bits. */
+	private final long prefix;
+	
+	/** Mask for the sequence bits below the prefix. */
+	private final long sequenceMask;
+	
+	/** Mask for the sequence bits used as slot index. */
+	private final int slotMask;
+	
+	/** The acquired tokens by slot, 0 marks a free slot. */
+	private final AtomicLongArray slots;
+	
+	private final AtomicLong currentToken;
+	
+	private final AtomicBoolean emptyTokenAcquired = new AtomicBoolean(false);
 	
 // Constructors ////////////////////////////////////////////////////////////////
 	
@@ -66,7 +93,42 @@ public class TokenManager {
 	 * Default singleton constructor.
 	 */
 	private TokenManager() {
-		this.currentToken = (long) (Math.random() * 0x100l);
+		this(Properties.std.getInt("TOKEN_LENGTH"), Properties.std.getInt("TOKEN_CAPACITY"));
+	}
+	
+	/**
+	 * Creates a token manager with its own random prefix.
+	 * 
+	 * @param tokenLength the width of the tokens in bytes (1 to 8)
+	 * @param capacity the maximum number of concurrently acquired tokens
+	 */
+	public TokenManager(int tokenLength, int capacity) {
+		
+		if (tokenLength < 1 || tokenLength > OptionNumberRegistry.TOKEN_LEN) {
+			LOG.warning(String.format("Invalid token length %d, using %d", tokenLength, OptionNumberRegistry.TOKEN_LEN));
+			tokenLength = OptionNumberRegistry.TOKEN_LEN;
+		}
+		
+		int width = tokenLength * 8;
+		
+		// slot index bits, leave at least one bit to vary the token per slot
+		int slotBits = 1;
+		while (slotBits < 30 && slotBits < width - 1 && (1 << slotBits) < capacity) {
+			++slotBits;
+		}
+		
+		// split the remaining bits between prefix and sequence
+		int prefixBits = Math.min(MAX_PREFIX_BITS, (width - slotBits) / 2);
+		int sequenceBits = width - prefixBits;
+		
+		Random random = new Random();
+		
+		this.tokenLength = tokenLength;
+		this.sequenceMask = sequenceBits == 64 ? -1L : (1L << sequenceBits) - 1;
+		this.prefix = prefixBits == 0 ? 0L : ((long) random.nextInt(1 << prefixBits)) << sequenceBits;
+		this.slotMask = (1 << slotBits) - 1;
+		this.slots = new AtomicLongArray(1 << slotBits);
+		this.currentToken = new AtomicLong(random.nextLong());
 	}
 	
 	public static TokenManager getInstance() {
@@ -82,28 +144,6 @@ public class TokenManager {
 	
 // Methods /////////////////////////////////////////////////////////////////////
 	
-	/**
-	 * Returns the next message ID to use out of the consecutive 16-bit range.
-	 * 
-	 * @return the current message ID
-	 */
-	private byte[] nextToken() {
-
-		++this.currentToken;
-		
-		LOG.fine("Token value: "+currentToken);
-		
-		long temp = this.currentToken;
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream(OptionNumberRegistry.TOKEN_LEN);  
-		
-		while (temp>0 && byteStream.size()<OptionNumberRegistry.TOKEN_LEN) {
-			byteStream.write((int)(temp & 0xff));
-			temp >>>= 8;
-		}
-		
-		return byteStream.toByteArray();
-	}
-	
 	/*
 	 * Returns an unique token.
 	 * 
@@ -114,19 +154,29 @@ public class TokenManager {
 	 * in block-wise transfers, as the empty token is then not available
 	 * for concurrent transactions.
 	 * 
+	 * @throws IllegalStateException if all TOKEN_CAPACITY tokens are acquired
 	 */
-	public synchronized byte[] acquireToken(boolean preferEmptyToken) {
+	public byte[] acquireToken(boolean preferEmptyToken) {
 		
-		byte[] token = null;
-		if (preferEmptyToken && acquiredTokens.add(emptyToken)) {
-			token = emptyToken;
-		} else {
-			do {
-				token = nextToken();
-			} while (!acquiredTokens.add(token));
+		if (preferEmptyToken && emptyTokenAcquired.compareAndSet(false, true)) {
+			return emptyToken;
+		}
+		
+		// probe each slot at most once
+		for (int probe = 0; probe <= slotMask; ++probe) {
+			
+			long token = prefix | (currentToken.incrementAndGet() & sequenceMask);
+			
+			// 0 is reserved for free slots
+			if (token != 0 && slots.compareAndSet(slot(token), 0L, token)) {
+				
+				LOG.finest("Token value: " + token);
+				
+				return toBytes(token);
+			}
 		}
 		
-		return token;
+		throw new IllegalStateException(String.format("Token capacity exhausted: %d tokens acquired", slots.length()));
 	}
 	
 	public byte[] acquireToken() {
@@ -138,9 +188,20 @@ public class TokenManager {
 	 * 
 	 * @param token The token to release
 	 */
-	public synchronized void releaseToken(byte[] token) {
+	public void releaseToken(byte[] token) {
 		
-		if (!acquiredTokens.remove(token)) {
+		boolean released;
+		
+		if (token.length == 0) {
+			released = emptyTokenAcquired.compareAndSet(true, false);
+		} else if (token.length == tokenLength) {
+			long value = toLong(token);
+			released = value != 0 && slots.compareAndSet(slot(value), value, 0L);
+		} else {
+			released = false;
+		}
+		
+		if (!released) {
 			LOG.warning(String.format("Token to release is not acquired: %s\n", Option.hex(token)));
 		}
 	}
@@ -151,9 +212,45 @@ public class TokenManager {
 	 * @param token The token to check
 	 * @return True iff the token is currently in use
 	 */
-	public synchronized boolean isAcquired(byte[] token) {
-		return acquiredTokens.contains(token);
+	public boolean isAcquired(byte[] token) {
+		
+		if (token.length == 0) {
+			return emptyTokenAcquired.get();
+		} else if (token.length == tokenLength) {
+			long value = toLong(token);
+			return value != 0 && slots.get(slot(value)) == value;
+		} else {
+			return false;
+		}
 	}
 	
+	/**
+	 * Returns the width of the non-empty tokens issued by this manager.
+	 * 
+	 * @return the token length in bytes
+	 */
+	public int getTokenLength() {
+		return tokenLength;
+	}
 	
+	private int slot(long token) {
+		return (int) token & slotMask;
+	}
+	
+	private byte[] toBytes(long token) {
+		byte[] bytes = new byte[tokenLength];
+		for (int i = tokenLength - 1; i >= 0; --i) {
+			bytes[i] = (byte) token;
+			token >>>= 8;
+		}
+		return bytes;
+	}
+	
+	private static long toLong(byte[] bytes) {
+		long value = 0;
+		for (byte b : bytes) {
+			value = (value << 8) | (b & 0xff);
+		}
+		return value;
+	}
 }
@@ -31,6 +31,9 @@
 package ch.ethz.inf.vs.californium.endpoint;
 
 import java.net.SocketException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Communicator;
@@ -86,6 +89,36 @@ public class LocalEndpoint extends Endpoint {
 		}
 	}
 
+	/*
+	 * Utility class to acknowledge requests that take too long to be answered
+	 * with a piggy-backed response.
+	 */
+	private static class AcceptTask extends TimerTask {
+		
+		private Request request;
+		
+		public AcceptTask(Request request) {
+			this.request = request;
+		}
+		
+		@Override
+		public void run() {
+			if (!request.isAnswered()) {
+				LOG.info(String.format("Accepting slow request for separate response: %s", request.key()));
+				request.accept();
+			}
+		}
+	}
+
+	/** A timer for acknowledging slow requests. */
+	private Timer acceptTimer = new Timer(true);
+	
+	/** The number of canceled accept tasks after which the timer queue is purged. */
+	private static final int ACCEPT_PURGE_INTERVAL = 1024;
+	
+	/** The accept tasks canceled since the start, canceled tasks stay queued until due. */
+	private AtomicInteger canceledAccepts = new AtomicInteger();
+
 	// TODO Constructor with custom root resource; check for resourceIdentifier==""
 	
 	public LocalEndpoint(int port, int defaultBlockSze, boolean daemon) throws SocketException {
@@ -129,9 +162,24 @@ public class LocalEndpoint extends Endpoint {
 				request.setResource(resource);
 				
 				LOG.info(String.format("Dispatching execution: %s", resourcePath));
+				
+				// stop client retransmissions if the resource is slow
+				TimerTask acceptTask = null;
+				if (request.isConfirmable() && resource.getSeparateResponseThreshold() > 0) {
+					acceptTask = new AcceptTask(request);
+					acceptTimer.schedule(acceptTask, resource.getSeparateResponseThreshold());
+				}
 
 				// invoke request handler of the resource
 				request.dispatch(resource);
+				
+				// keep the task for resources that respond from another thread
+				if (acceptTask!=null && request.isAnswered()) {
+					acceptTask.cancel();
+					if (canceledAccepts.incrementAndGet() % ACCEPT_PURGE_INTERVAL == 0) {
+						acceptTimer.purge();
+					}
+				}
 			
 			} else if (request instanceof PUTRequest) {
 				// allows creation of non-existing resources through PUT
@@ -187,15 +235,56 @@ public class LocalEndpoint extends Endpoint {
 	public void addResource(LocalResource resource) {
 		if (rootResource != null) {
 			rootResource.add(resource);
+			
+			// divert NON POST/PUT requests at the bottom of the stack
+			if (resource.isSink()) {
+				Communicator.getInstance().getIngestionLayer().registerSink(resource.getPath(), resource);
+			}
+			
+			// hand over blockwise request bodies as they arrive
+			if (resource.isStreaming()) {
+				Communicator.getInstance().getTransferLayer().registerChunkHandler(resource.getPath(), resource);
+			}
+			
+			// continue observing relationships persisted before a restart
+			ObservingManager.getInstance().restoreObservers(resource);
 		}
 	}
 
 	public void removeResource(String resourceIdentifier) {
 		if (rootResource != null) {
+			
+			LocalResource resource = getResource(resourceIdentifier);
+			if (resource!=null && resource.isSink()) {
+				Communicator.getInstance().getIngestionLayer().unregisterSink(resource.getPath());
+			}
+			if (resource!=null && resource.isStreaming()) {
+				Communicator.getInstance().getTransferLayer().unregisterChunkHandler(resource.getPath());
+			}
+			
 			rootResource.removeSubResource(resourceIdentifier);
 		}
 	}
 
+	/**
+	 * Starts recording the changes of resources made by the current thread,
+	 * e.g., when a device snapshot updates many related resources. Observers
+	 * are notified of all changes together by {@link #commitChanges()}, which
+	 * should be called in a finally block.
+	 */
+	public void beginChanges() {
+		ObservingManager.getInstance().beginChanges();
+	}
+	
+	/**
+	 * Notifies the observers of all resources changed since
+	 * {@link #beginChanges()} in one pass. An observer of several changed
+	 * resources receives its notifications together.
+	 */
+	public void commitChanges() {
+		ObservingManager.getInstance().commitChanges();
+	}
+
 	@Override
 	public void handleRequest(Request request) {
 		execute(request);
@@ -30,13 +30,23 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.endpoint;
 
+import java.util.List;
+
+import ch.ethz.inf.vs.californium.coap.ChunkHandler;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.DELETERequest;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.IngestionHandler;
+import ch.ethz.inf.vs.californium.coap.LinkAttribute;
+import ch.ethz.inf.vs.californium.coap.LinkFormat;
 import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.POSTRequest;
 import ch.ethz.inf.vs.californium.coap.PUTRequest;
 import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.TokenManager;
+import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
  * The class LocalResource provides the functionality of a CoAP server resource
@@ -53,7 +63,30 @@ import ch.ethz.inf.vs.californium.coap.Request;
  * 
  * @author Dominique Im Obersteg, Daniel Pauli, and Matthias Kovatsch
  */
-public class LocalResource extends Resource {
+public class LocalResource extends Resource implements IngestionHandler, ChunkHandler {
+
+	// Members /////////////////////////////////////////////////////////////////
+
+	/** The time in ms after which unanswered confirmable requests are acknowledged. */
+	private int separateResponseThreshold = Properties.std.getInt("SEPARATE_RESPONSE_THRESHOLD");
+	
+	/** Determines whether NON POST/PUT requests are ingested in batches. */
+	private boolean sink = false;
+	
+	/** Determines whether blockwise request bodies are streamed. */
+	private boolean streaming = false;
+	
+	/** The minimum time in seconds between two notifications to an observer. */
+	private int minimumPeriod = 0;
+	
+	/** The maximum time in seconds without a notification to an observer. */
+	private int maximumPeriod = 0;
+	
+	/** The multicast group notifications are published to, null for unicast only. */
+	private EndpointAddress multicastGroup = null;
+	
+	/** The token of the multicast notifications. */
+	private byte[] multicastToken = null;
 
 	// Constructors ////////////////////////////////////////////////////////////
 
@@ -75,6 +108,189 @@ public class LocalResource extends Resource {
 	protected void changed() {
 		ObservingManager.getInstance().notifyObservers(this);
 	}
+	
+	/**
+	 * Returns the minimum period between two notifications. Changes within
+	 * this period are coalesced and only the latest state is sent when the
+	 * period has passed. Observers can override it with the query parameter
+	 * pmin.
+	 * 
+	 * @return the period in seconds, or 0 if every change is sent
+	 */
+	public int getMinimumPeriod() {
+		return minimumPeriod;
+	}
+	
+	/**
+	 * Sets the minimum period between two notifications to an observer.
+	 * 
+	 * @param seconds the period in seconds, 0 to send every change
+	 */
+	public void setMinimumPeriod(int seconds) {
+		this.minimumPeriod = seconds;
+	}
+	
+	/**
+	 * Returns the maximum period after which observers are notified with the
+	 * current state even if the resource did not change. Observers can
+	 * override it with the query parameter pmax.
+	 * 
+	 * @return the period in seconds, or 0 if only changes are sent
+	 */
+	public int getMaximumPeriod() {
+		return maximumPeriod;
+	}
+	
+	/**
+	 * Sets the maximum period without a notification to an observer.
+	 * 
+	 * @param seconds the period in seconds, 0 to only send changes
+	 */
+	public void setMaximumPeriod(int seconds) {
+		this.maximumPeriod = seconds;
+	}
+	
+	/**
+	 * Returns the multicast group to which notifications are published.
+	 * 
+	 * @return the group, or null if observers are notified by unicast only
+	 */
+	public EndpointAddress getMulticastGroup() {
+		return multicastGroup;
+	}
+	
+	/**
+	 * Returns the token of the multicast notifications. Observers that
+	 * register with this token and the query parameter mcast receive their
+	 * notifications through the group, if they use the port of the group.
+	 * 
+	 * @return the token, or null if there is no multicast group
+	 */
+	public byte[] getMulticastToken() {
+		return multicastToken;
+	}
+	
+	/**
+	 * Publishes the notifications of this resource to a multicast group, so
+	 * that a change is sent only once to all observers on the link that
+	 * joined the group. The group and token are announced through the link
+	 * attributes mcast and mtkn.
+	 * 
+	 * @param group the multicast group, null to notify by unicast only
+	 */
+	public void setMulticastGroup(EndpointAddress group) {
+		
+		this.multicastGroup = group;
+		
+		clearAttribute(LinkFormat.MULTICAST_GROUP);
+		clearAttribute(LinkFormat.MULTICAST_TOKEN);
+		
+		if (group!=null) {
+			if (multicastToken==null) {
+				multicastToken = TokenManager.getInstance().acquireToken();
+			}
+			setAttribute(new LinkAttribute(LinkFormat.MULTICAST_GROUP, group.toString()));
+			setAttribute(new LinkAttribute(LinkFormat.MULTICAST_TOKEN, Option.hex(multicastToken).replace(" ", "")));
+		} else if (multicastToken!=null) {
+			TokenManager.getInstance().releaseToken(multicastToken);
+			multicastToken = null;
+		}
+	}
+
+// Separate responses //////////////////////////////////////////////////////////
+
+	/**
+	 * Returns the time after which the {@link LocalEndpoint} acknowledges a
+	 * confirmable request with an empty ACK if the resource did not respond
+	 * yet. The response is then sent as confirmable separate response.
+	 * 
+	 * @return the threshold in milliseconds, or 0 if disabled
+	 */
+	public int getSeparateResponseThreshold() {
+		return separateResponseThreshold;
+	}
+
+	/**
+	 * Sets the time after which unanswered confirmable requests are
+	 * acknowledged automatically. Slow resources should use a value well
+	 * below RESPONSE_TIMEOUT, so that clients do not retransmit.
+	 * 
+	 * @param threshold the threshold in milliseconds, 0 to disable
+	 */
+	public void setSeparateResponseThreshold(int threshold) {
+		this.separateResponseThreshold = threshold;
+	}
+
+// Ingestion ///////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns whether this resource is a sink for high-rate telemetry.
+	 * 
+	 * @return true if NON POST/PUT requests are delivered to {@link #performIngest(List)}
+	 */
+	public boolean isSink() {
+		return sink;
+	}
+	
+	/**
+	 * Flags this resource as sink. Non-confirmable POST and PUT requests then
+	 * bypass the regular processing and are delivered in batches to
+	 * {@link #performIngest(List)} without being answered. Confirmable
+	 * requests are still dispatched to {@link #performPOST(POSTRequest)}
+	 * and {@link #performPUT(PUTRequest)}.
+	 * <p>
+	 * The flag must be set before the resource is added to the {@link LocalEndpoint}.
+	 * 
+	 * @param sink true to ingest NON POST/PUT requests
+	 */
+	public void setSink(boolean sink) {
+		this.sink = sink;
+	}
+	
+	/**
+	 * Sink resources override this method to consume batches of NON POST/PUT
+	 * requests. It is called from the ingestion thread, not the receiver thread.
+	 */
+	@Override
+	public void performIngest(List<Request> batch) {
+		LOG.warning(String.format("Sink without ingestion handler dropped %d requests: %s", batch.size(), getPath()));
+	}
+
+// Streaming ///////////////////////////////////////////////////////////////////
+
+	/**
+	 * Returns whether blockwise request bodies are streamed to this resource.
+	 * 
+	 * @return true if blocks are delivered to {@link #performChunk(Request, byte[], boolean)}
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+	
+	/**
+	 * Flags this resource to receive blockwise request bodies block by block
+	 * through {@link #performChunk(Request, byte[], boolean)} as they arrive.
+	 * The request is dispatched as usual after the last block, but without
+	 * payload. Bodies of requests that fit into a single message are not
+	 * affected.
+	 * <p>
+	 * The flag must be set before the resource is added to the {@link LocalEndpoint}.
+	 * 
+	 * @param streaming true to stream blockwise request bodies
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * Streaming resources override this method to consume the body of a
+	 * blockwise request in order. It is called from the receiver thread with
+	 * the first request of the transfer.
+	 */
+	@Override
+	public void performChunk(Request request, byte[] chunk, boolean last) {
+		LOG.warning(String.format("Streaming resource without chunk handler dropped %d bytes: %s", chunk!=null ? chunk.length : 0, getPath()));
+	}
 
 // REST Operations /////////////////////////////////////////////////////////////
 
@@ -37,6 +37,9 @@ import java.net.URISyntaxException;
 import ch.ethz.inf.vs.californium.coap.Communicator;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.coap.ResponseHandler;
+import ch.ethz.inf.vs.californium.coap.Subscription;
+import ch.ethz.inf.vs.californium.coap.SubscriptionManager;
 
 /**
  * The class RemoteEndpoint is currently an unimplemented skeleton for a
@@ -78,6 +81,19 @@ public class RemoteEndpoint extends Endpoint {
 		}
 
 	}
+	
+	/**
+	 * Observes a resource of the endpoint through the
+	 * {@link SubscriptionManager}, which keeps the notifications in order and
+	 * re-registers if the server falls silent.
+	 * 
+	 * @param path the path of the resource, relative to the endpoint URI
+	 * @param handler the handler for the notifications
+	 * @return the subscription, to be canceled when no longer needed
+	 */
+	public Subscription observe(String path, ResponseHandler handler) {
+		return SubscriptionManager.getInstance().subscribe(uri.resolve(path), handler);
+	}
 
 	protected URI uri;
 
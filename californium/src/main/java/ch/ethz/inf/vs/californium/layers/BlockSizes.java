@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.EndpointAddress;
+
+/**
+ * The class BlockSizes remembers the block size that works best for each
+ * peer of the {@link TransferLayer}. All transfers start with the default
+ * size. If growing is enabled, the size is doubled up to 1024 bytes after a
+ * number of blocks without retransmission. A block that needed a
+ * retransmission halves the size again.
+ * Below the default size, it only shrinks when most blocks are lost, as with
+ * datagrams exceeding the path MTU, since smaller blocks do not help against
+ * random loss. Failed datagrams that were too large and explicit demands of
+ * the peer cap the size for all later transfers.
+ * <p>
+ * Blocks are only reported by the client side of a transfer, which sends the
+ * confirmable block requests, using the retransmissions counted by the
+ * {@link TransactionLayer}.
+ * <p>
+ * The number of remembered peers is bounded, the least recently used are
+ * forgotten first.
+ * 
+ * @author Matthias Kovatsch
+ */
+class BlockSizes {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(BlockSizes.class.getName());
+	
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	/** The largest block size exponent (1024 bytes). */
+	private static final int MAX_SZX = 6;
+	
+	/** The number of remembered peers. */
+	private static final int CAPACITY = 4096;
+	
+	/** The loss rate above which blocks shrink below the default size. */
+	private static final double SHRINK_LOSS_RATE = 0.5;
+
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/*
+	 * The block size state of one peer
+	 */
+	private static class Peer {
+		int szx;
+		int maxSZX = MAX_SZX;
+		int clean;
+		double lossRate;
+	}
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private Map<String, Peer> peers = new LinkedHashMap<String, Peer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Peer> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+	
+	/** The size exponent for new peers. */
+	private int defaultSZX;
+	
+	/** The number of clean blocks before growing, 0 never grows above the default size. */
+	private int growInterval;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	BlockSizes(int defaultSZX, int growInterval) {
+		this.defaultSZX = defaultSZX;
+		this.growInterval = growInterval;
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the block size exponent to use for the peer.
+	 * 
+	 * @param peer the address of the peer
+	 * @return the size exponent
+	 */
+	synchronized int get(EndpointAddress peer) {
+		Peer state = peers.get(peer.toString());
+		return state != null ? state.szx : defaultSZX;
+	}
+	
+	/**
+	 * Reports a block exchange, i.e., the answer to a block or block request.
+	 * 
+	 * @param peer the address of the peer
+	 * @param retransmitted true if the block or block request was retransmitted
+	 */
+	synchronized void reportBlock(EndpointAddress peer, boolean retransmitted) {
+		
+		if (defaultSZX < 0) {
+			return;
+		}
+		
+		Peer state = getState(peer);
+		
+		// moving average over roughly the last eight blocks
+		state.lossRate = state.lossRate * 7 / 8 + (retransmitted ? 1.0 / 8 : 0);
+		
+		if (retransmitted) {
+			
+			state.clean = 0;
+			if (state.szx > defaultSZX || state.szx > 0 && state.lossRate > SHRINK_LOSS_RATE) {
+				--state.szx;
+				LOG.fine(String.format("Shrinking block size for %s after retransmission: %d", peer, BlockOption.decodeSZX(state.szx)));
+			}
+			
+		} else if (growInterval > 0 && ++state.clean >= growInterval && state.szx < state.maxSZX) {
+			
+			state.clean = 0;
+			++state.szx;
+			LOG.fine(String.format("Growing block size for %s: %d", peer, BlockOption.decodeSZX(state.szx)));
+		}
+	}
+	
+	/**
+	 * Limits the block size for the peer to the given size, e.g., because the
+	 * peer demanded smaller blocks.
+	 * 
+	 * @param peer the address of the peer
+	 * @param szx the largest size exponent the peer accepts
+	 */
+	synchronized void reportLimit(EndpointAddress peer, int szx) {
+		
+		if (defaultSZX < 0) {
+			return;
+		}
+		
+		Peer state = getState(peer);
+		
+		if (szx < state.maxSZX) {
+			state.maxSZX = Math.max(0, szx);
+			state.szx = Math.min(state.szx, state.maxSZX);
+			LOG.fine(String.format("Limiting block size for %s: %d", peer, BlockOption.decodeSZX(state.maxSZX)));
+		}
+	}
+	
+	/**
+	 * Checks if sending a block failed because the datagram was too large and
+	 * limits the block size for the peer below the failed one.
+	 * 
+	 * @param peer the address of the peer
+	 * @param szx the size exponent of the failed block
+	 * @param e the exception of the failed send
+	 */
+	void reportFailure(EndpointAddress peer, int szx, IOException e) {
+		
+		// EMSGSIZE, reported by the socket as "Message too long"
+		if (e.getMessage()!=null && e.getMessage().contains("too long")) {
+			LOG.info(String.format("Datagram too large for %s at block size %d", peer, BlockOption.decodeSZX(szx)));
+			reportLimit(peer, szx - 1);
+		}
+	}
+	
+	/*
+	 * Returns the state of the peer, creating it with the default size.
+	 */
+	private Peer getState(EndpointAddress peer) {
+		
+		Peer state = peers.get(peer.toString());
+		
+		if (state==null) {
+			state = new Peer();
+			state.szx = defaultSZX;
+			peers.put(peer.toString(), state);
+		}
+		
+		return state;
+	}
+	
+	public synchronized String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		stats.append("Block size peers: ");
+		stats.append(peers.size());
+		
+		return stats.toString();
+	}
+	
+// Static Methods //////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the largest size exponent not above the preferred one for which
+	 * the offset is a block boundary, so that a transfer can switch sizes.
+	 * 
+	 * @param offset the byte offset of the next block
+	 * @param szx the preferred size exponent
+	 * @return the size exponent to continue with
+	 */
+	static int align(int offset, int szx) {
+		while (szx > 0 && offset % BlockOption.decodeSZX(szx) != 0) {
+			--szx;
+		}
+		return szx;
+	}
+}
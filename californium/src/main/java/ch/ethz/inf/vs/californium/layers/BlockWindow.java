@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The class BlockWindow keeps the state of a client download that has several
+ * Block2 requests in flight. Blocks are reassembled in order into the body of
+ * the {@link TransferContext}, early blocks are held back until the gap is
+ * filled.
+ * <p>
+ * The window follows additive increase, multiplicative decrease: it grows by
+ * one block for each block that arrives within the initial response timeout
+ * and is halved when a block needed a retransmission. Each block request is a
+ * separate confirmable, so lost blocks are retried on their own with the
+ * usual exponential back-off. A 5.03 reply shrinks the window to one block and
+ * holds back all requests until its Max-Age expired.
+ * <p>
+ * All methods must be called while holding the lock of the window.
+ * 
+ * @author Matthias Kovatsch
+ */
+class BlockWindow {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The block size exponent used for all requests. */
+	final int szx;
+	
+	/** The largest number of requests in flight. */
+	private int maxWindow;
+	
+	/** The current number of requests allowed in flight. */
+	private int window;
+	
+	/** The time after which a block is considered lost, in milliseconds. */
+	private int lossTimeout;
+	
+	/** The next block to append to the body. */
+	private int nextAppend;
+	
+	/** The next block not requested yet. */
+	private int nextRequest;
+	
+	/** The first block number known to be beyond the body. */
+	private int end = Integer.MAX_VALUE;
+	
+	/** Blocks received ahead of a gap. */
+	private Map<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+	
+	/** The send times of requested blocks. */
+	private Map<Integer, Long> inFlight = new HashMap<Integer, Long>();
+	
+	/** Maps the MIDs of block requests to block numbers. */
+	private Map<Integer, Integer> requests = new HashMap<Integer, Integer>();
+	
+	/** Blocks the server was too busy to deliver. */
+	private SortedSet<Integer> deferred = new TreeSet<Integer>();
+	
+	/** No blocks are requested before this time. */
+	private long holdUntil;
+	
+	private int retries;
+	
+	private long started = System.currentTimeMillis();
+	private long bytes;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Creates the window after the first block was appended to the body.
+	 * 
+	 * @param szx the block size exponent for all following requests
+	 * @param first the first block number to request with that size
+	 * @param bytes the number of bytes already received
+	 * @param maxWindow the largest number of requests in flight
+	 * @param lossTimeout the time after which a block is considered lost
+	 */
+	BlockWindow(int szx, int first, int bytes, int maxWindow, int lossTimeout) {
+		this.szx = szx;
+		this.nextAppend = first;
+		this.nextRequest = first;
+		this.bytes = bytes;
+		this.maxWindow = maxWindow;
+		this.window = Math.min(2, maxWindow);
+		this.lossTimeout = lossTimeout;
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the blocks to request to fill the window and marks them as in
+	 * flight.
+	 * 
+	 * @return the block numbers to request
+	 */
+	List<Integer> fill() {
+		
+		List<Integer> demand = new ArrayList<Integer>();
+		
+		long now = System.currentTimeMillis();
+		if (now < holdUntil) {
+			return demand;
+		}
+		
+		while (inFlight.size() < window && !deferred.isEmpty()) {
+			int num = deferred.first();
+			deferred.remove(num);
+			if (num < end) {
+				inFlight.put(num, now);
+				demand.add(num);
+			}
+		}
+		
+		while (inFlight.size() < window && nextRequest < end) {
+			inFlight.put(nextRequest, now);
+			demand.add(nextRequest++);
+		}
+		
+		return demand;
+	}
+	
+	/**
+	 * Records the MID of a block request to recognize error replies.
+	 * 
+	 * @param num the requested block number
+	 * @param mid the MID of the request
+	 */
+	void sent(int num, int mid) {
+		requests.put(mid, num);
+	}
+	
+	/**
+	 * Stores a received block and returns all blocks that follow the body
+	 * without gap.
+	 * 
+	 * @param num the block number
+	 * @param mid the MID of the reply
+	 * @param payload the block payload
+	 * @param more true if further blocks exist
+	 * @return the blocks to append to the body in order, empty if the block
+	 *         is ahead of a gap, or null if the block was a duplicate
+	 */
+	List<byte[]> received(int num, int mid, byte[] payload, boolean more) {
+
+		requests.remove(mid);
+		Long sent = inFlight.remove(num);
+		
+		if (num < nextAppend || pending.containsKey(num) || num >= end) {
+			return null;
+		}
+
+		long rtt = sent!=null ? System.currentTimeMillis() - sent : -1;
+		
+		// adapt window to the path
+		if (rtt > lossTimeout) {
+			window = Math.max(1, window / 2);
+		} else if (window < maxWindow) {
+			++window;
+		}
+		
+		if (!more) {
+			end = num + 1;
+		}
+		
+		bytes += payload.length;
+		
+		List<byte[]> blocks = new ArrayList<byte[]>();
+		
+		if (num == nextAppend) {
+			blocks.add(payload);
+			++nextAppend;
+			
+			byte[] next;
+			while ((next = pending.remove(nextAppend))!=null) {
+				blocks.add(next);
+				++nextAppend;
+			}
+		} else {
+			pending.put(num, payload);
+		}
+		
+		return blocks;
+	}
+	
+	/**
+	 * Handles the error reply to a block request beyond the end of the body.
+	 * 
+	 * @param mid the MID of the reply
+	 * @return true if the reply belonged to a block request
+	 */
+	boolean outOfScope(int mid) {
+		
+		Integer num = requests.remove(mid);
+		if (num==null) {
+			return false;
+		}
+		
+		inFlight.remove(num);
+		end = Math.min(end, num);
+		
+		return true;
+	}
+	
+	/**
+	 * Handles the 5.03 reply to a block request. The window shrinks to one
+	 * block and the block is requested again once the hold-off expired.
+	 * 
+	 * @param mid the MID of the reply
+	 * @param holdOff the time to wait before the next request, in milliseconds
+	 * @return true if the reply belonged to a block request
+	 */
+	boolean busy(int mid, long holdOff) {
+		
+		Integer num = requests.remove(mid);
+		if (num==null) {
+			return false;
+		}
+		
+		inFlight.remove(num);
+		
+		window = 1;
+		++retries;
+		holdUntil = System.currentTimeMillis() + holdOff;
+		
+		deferred.add(num);
+		return true;
+	}
+	
+	/**
+	 * Handles a block request that failed after all retransmissions. The
+	 * block is marked as in flight again if it is still missing.
+	 * 
+	 * @param num the block number
+	 * @return true if the block must be requested again
+	 */
+	boolean timedOut(int num) {
+		
+		inFlight.remove(num);
+		
+		if (num < nextAppend || pending.containsKey(num) || num >= end) {
+			return false;
+		}
+		
+		window = 1;
+		++retries;
+		
+		inFlight.put(num, System.currentTimeMillis());
+		return true;
+	}
+	
+	int getRetries() {
+		return retries;
+	}
+	
+	boolean isComplete() {
+		return nextAppend >= end;
+	}
+	
+	/**
+	 * Returns the number of the last block of a complete body.
+	 */
+	int getLast() {
+		return end - 1;
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Returns the goodput of the download so far.
+	 * 
+	 * @return the received payload bytes per second
+	 */
+	long getGoodput() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - started);
+		return bytes * 1000 / elapsed;
+	}
+	
+	long getElapsed() {
+		return System.currentTimeMillis() - started;
+	}
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.TimerTask;
+
+import ch.ethz.inf.vs.californium.coap.Request;
+
+/**
+ * The class Exchange holds all state of a request/response exchange that
+ * the layers keep between messages. It is identified by
+ * {@link ch.ethz.inf.vs.californium.coap.Message#sequenceKey()} and whether
+ * this endpoint is the client or the server of the exchange, stored in the
+ * {@link ExchangeStore}, and attached to each message by the
+ * {@link MatchingLayer}, so that the layers above do not have to look it up
+ * again.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class Exchange {
+
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The key of the exchange (peer#token). */
+	public final String key;
+	
+	/** True if this endpoint sent the request, false for requests from the peer. */
+	public final boolean client;
+	
+	/** The request as issued by the client, null for server-side state. */
+	public volatile Request request;
+	
+	/** The request last sent for this exchange, e.g., for the current block. */
+	public volatile Request currentRequest;
+	
+	/** The task to handle the overall timeout of the exchange. */
+	public volatile TimerTask timeoutTask;
+	
+	/** True once a notification was received for the request. */
+	public volatile boolean observing;
+	
+	/** The blockwise transfer in progress from the peer. */
+	volatile TransferContext incoming;
+	
+	/** The blockwise transfer in progress to the peer. */
+	volatile TransferContext outgoing;
+	
+	/** The time the exchange was last used, in milliseconds. */
+	volatile long lastActivity;
+	
+	/** Set once removed from the store, guarded by this. */
+	boolean removed;
+	
+	/** Set once the transfers were released, nothing may be sent for the exchange afterwards. */
+	volatile boolean disposed;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	public Exchange(String key, boolean client) {
+		this.key = key;
+		this.client = client;
+		this.lastActivity = System.currentTimeMillis();
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Checks whether the exchange only holds server-side state, which is not
+	 * cleaned up by a timeout of its own.
+	 * 
+	 * @return true if no client request or observe relationship uses it
+	 */
+	public boolean isOrphan() {
+		return request == null && !observing;
+	}
+	
+	/**
+	 * Releases the buffers of blockwise transfers in progress and detaches
+	 * them, so that pending timers and replies find no transfer to continue.
+	 */
+	void dispose() {
+		disposed = true;
+		TransferContext transfer = incoming;
+		incoming = null;
+		if (transfer != null) {
+			transfer.dispose();
+		}
+		transfer = outgoing;
+		outgoing = null;
+		if (transfer != null) {
+			transfer.dispose();
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return key;
+	}
+}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class ExchangeStore keeps the {@link Exchange}s of a stack, shared by
+ * the {@link TokenLayer}, {@link TransferLayer}, and {@link MatchingLayer}.
+ * It is safe for concurrent use.
+ * <p>
+ * Client and server exchanges are kept apart, so that a request to a peer
+ * never matches a request from the same peer with the same token.
+ * <p>
+ * Client exchanges are removed by the TokenLayer on completion or timeout.
+ * Exchanges that only hold server-side state, e.g., an abandoned blockwise
+ * transfer, are swept once they were not used for EXCHANGE_LIFETIME.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class ExchangeStore {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(ExchangeStore.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The exchanges of requests sent by this endpoint. */
+	private ConcurrentMap<String, Exchange> clientExchanges = new ConcurrentHashMap<String, Exchange>();
+	
+	/** The exchanges of requests received from peers. */
+	private ConcurrentMap<String, Exchange> serverExchanges = new ConcurrentHashMap<String, Exchange>();
+	
+	/** The timer daemon to sweep stale exchanges. */
+	private Timer timer = new Timer(true);
+	
+	/** The time after which unused server-side state is removed, in milliseconds. */
+	private int lifetime;
+	
+	private long numSwept;
+	
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/*
+	 * Utility class to sweep stale exchanges periodically
+	 */
+	private class SweepTask extends TimerTask {
+		@Override
+		public void run() {
+			sweep();
+		}
+	}
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	public ExchangeStore(int sweepInterval, int lifetime) {
+		this.lifetime = lifetime;
+		timer.schedule(new SweepTask(), sweepInterval, sweepInterval);
+	}
+	
+	public ExchangeStore() {
+		this(Properties.std.getInt("EXCHANGE_SWEEP_INTERVAL"), Properties.std.getInt("EXCHANGE_LIFETIME"));
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the exchange for the given key and marks it as used.
+	 * 
+	 * @param key the sequence key (peer#token)
+	 * @param client true for an exchange of a request sent by this endpoint
+	 * @return the exchange or null if none is stored
+	 */
+	public Exchange get(String key, boolean client) {
+		
+		Exchange exchange = map(client).get(key);
+		
+		if (exchange!=null) {
+			synchronized (exchange) {
+				if (exchange.removed) {
+					return null;
+				}
+				exchange.lastActivity = System.currentTimeMillis();
+			}
+		}
+		
+		return exchange;
+	}
+	
+	/**
+	 * Returns the exchange for the given key, a new one if none is stored.
+	 * 
+	 * @param key the sequence key (peer#token)
+	 * @param client true for an exchange of a request sent by this endpoint
+	 * @return the stored exchange
+	 */
+	public Exchange getOrCreate(String key, boolean client) {
+		
+		while (true) {
+			
+			Exchange exchange = get(key, client);
+			if (exchange!=null) {
+				return exchange;
+			}
+			
+			Exchange fresh = new Exchange(key, client);
+			exchange = map(client).putIfAbsent(key, fresh);
+			
+			if (exchange==null) {
+				LOG.finer(String.format("Stored new exchange: %s", key));
+				return fresh;
+			}
+			
+			// lost a race, retry unless the other one was just removed
+		}
+	}
+	
+	/**
+	 * Removes the exchange from the store.
+	 * 
+	 * @param exchange the exchange to remove
+	 * @return true if this call removed the exchange, false if it was already gone
+	 */
+	public boolean remove(Exchange exchange) {
+		
+		synchronized (exchange) {
+			if (exchange.removed) {
+				return false;
+			}
+			exchange.removed = true;
+		}
+		
+		map(exchange.client).remove(exchange.key, exchange);
+		exchange.dispose();
+		
+		LOG.finer(String.format("Cleared exchange: %s", exchange.key));
+		
+		return true;
+	}
+	
+	public int size() {
+		return clientExchanges.size() + serverExchanges.size();
+	}
+	
+	private ConcurrentMap<String, Exchange> map(boolean client) {
+		return client ? clientExchanges : serverExchanges;
+	}
+	
+	private void sweep() {
+		sweep(clientExchanges);
+		sweep(serverExchanges);
+	}
+	
+	private void sweep(ConcurrentMap<String, Exchange> exchanges) {
+		
+		long stale = System.currentTimeMillis() - lifetime;
+		
+		for (Exchange exchange : exchanges.values()) {
+			
+			synchronized (exchange) {
+				if (exchange.removed || !exchange.isOrphan() || exchange.lastActivity > stale) {
+					continue;
+				}
+				exchange.removed = true;
+			}
+			
+			exchanges.remove(exchange.key, exchange);
+			exchange.dispose();
+			++numSwept;
+			
+			LOG.fine(String.format("Swept stale exchange: %s", exchange.key));
+		}
+	}
+	
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		stats.append("Exchanges: ");
+		stats.append(size());
+		stats.append('\n');
+		stats.append("Swept exchanges: ");
+		stats.append(numSwept);
+		
+		return stats.toString();
+	}
+}
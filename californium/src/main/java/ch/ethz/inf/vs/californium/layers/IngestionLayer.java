@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.IngestionHandler;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+/**
+ * The class IngestionLayer provides a fire-and-forget path for high-rate
+ * telemetry. Non-confirmable POST and PUT requests to paths registered as
+ * sinks are taken out of the stack right above the {@link UDPLayer}. They skip
+ * duplicate detection, matching, blockwise transfers, token handling, and
+ * resource dispatching, and are never answered.
+ * <p>
+ * Diverted requests are queued per sink and handed to the sink's
+ * {@link IngestionHandler} in batches, one batch per drain cycle, on a
+ * separate thread. A sink queues at most INGESTION_QUEUE_CAPACITY requests;
+ * requests arriving at a full queue are dropped and counted. All other
+ * messages pass through unchanged.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class IngestionLayer extends UpperLayer {
+
+// Members /////////////////////////////////////////////////////////////////////
+
+	/** Maps a sink path to its queue and handler. */
+	private Map<String, Sink> sinks = new ConcurrentHashMap<String, Sink>();
+
+	/** The timer daemon to drain the queues. */
+	private Timer timer = new Timer(true);
+	
+	/** The maximum number of requests handed over in one batch. */
+	private int batchSize;
+	
+	/** The maximum number of requests queued per sink. */
+	private int capacity;
+	
+	private AtomicLong numBatches = new AtomicLong();
+	private AtomicLong numIngested = new AtomicLong();
+	private AtomicLong numDropped = new AtomicLong();
+
+// Nested Classes //////////////////////////////////////////////////////////////
+
+	/*
+	 * Entity class to keep the state of a sink
+	 */
+	private static class Sink {
+		public String path;
+		public IngestionHandler handler;
+		public BlockingQueue<Request> queue;
+	}
+	
+	/*
+	 * Utility class to drain all sinks periodically
+	 */
+	private class DrainTask extends TimerTask {
+		@Override
+		public void run() {
+			for (Sink sink : sinks.values()) {
+				drain(sink);
+			}
+		}
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+	
+	public IngestionLayer(int drainInterval, int batchSize, int capacity) {
+		this.batchSize = batchSize;
+		this.capacity = capacity;
+		timer.schedule(new DrainTask(), drainInterval, drainInterval);
+	}
+	
+	public IngestionLayer() {
+		this(Properties.std.getInt("INGESTION_DRAIN_INTERVAL"), Properties.std.getInt("INGESTION_BATCH_SIZE"), Properties.std.getInt("INGESTION_QUEUE_CAPACITY"));
+	}
+
+	// Sink management /////////////////////////////////////////////////////////
+	
+	/**
+	 * Registers a sink. Non-confirmable POST and PUT requests to the given
+	 * path will be delivered to the handler instead of the upper layers.
+	 * 
+	 * @param path the Uri-Path of the sink, e.g., "/readings"
+	 * @param handler the handler for the batches
+	 */
+	public void registerSink(String path, IngestionHandler handler) {
+		
+		Sink sink = new Sink();
+		sink.path = path;
+		sink.handler = handler;
+		sink.queue = new LinkedBlockingQueue<Request>(Math.max(1, capacity));
+				
+		sinks.put(path, sink);
+		
+		LOG.config(String.format("Registered ingestion sink: %s", path));
+	}
+	
+	public void unregisterSink(String path) {
+		
+		Sink sink = sinks.remove(path);
+		
+		if (sink!=null) {
+			// hand over what is left
+			drain(sink);
+			LOG.config(String.format("Unregistered ingestion sink: %s", path));
+		}
+	}
+	
+	public boolean isSink(String path) {
+		return sinks.containsKey(path);
+	}
+
+	// I/O implementation //////////////////////////////////////////////////////
+	
+	@Override
+	protected void doSendMessage(Message msg) throws IOException {
+		sendMessageOverLowerLayer(msg);
+	}
+	
+	@Override
+	protected void doReceiveMessage(Message msg) {
+		
+		// only pay for the path lookup if sinks exist
+		if (!sinks.isEmpty() && msg.isNonConfirmable() &&
+				(msg.getCode()==CodeRegistry.METHOD_POST || msg.getCode()==CodeRegistry.METHOD_PUT)) {
+			
+			Sink sink = sinks.get(msg.getUriPath());
+			
+			if (sink!=null) {
+				if (!sink.queue.offer((Request) msg)) {
+					// the handler does not keep up, shed the load instead of exhausting the heap
+					if (numDropped.getAndIncrement() % 1024 == 0) {
+						LOG.warning(String.format("Ingestion queue full, dropping requests: %s", sink.path));
+					}
+				}
+				return;
+			}
+		}
+		
+		deliverMessage(msg);
+	}
+	
+	// Internal ////////////////////////////////////////////////////////////////
+	
+	private void drain(Sink sink) {
+		
+		while (!sink.queue.isEmpty()) {
+			
+			List<Request> batch = new ArrayList<Request>(Math.min(batchSize, sink.queue.size()));
+			
+			Request request = null;
+			while (batch.size() < batchSize && (request = sink.queue.poll())!=null) {
+				batch.add(request);
+			}
+			
+			if (batch.isEmpty()) {
+				return;
+			}
+			
+			// protect the timer thread against handler failures
+			try {
+				sink.handler.performIngest(batch);
+			} catch (Exception e) {
+				LOG.severe(String.format("Ingestion handler failed for %s: %s", sink.path, e.getMessage()));
+			}
+			
+			numBatches.incrementAndGet();
+			numIngested.addAndGet(batch.size());
+		}
+	}
+	
+	public String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		stats.append("Ingestion sinks: ");
+		stats.append(sinks.size());
+		stats.append('\n');
+		stats.append("Ingested requests: ");
+		stats.append(numIngested.get());
+		stats.append('\n');
+		stats.append("Ingested batches:  ");
+		stats.append(numBatches.get());
+		stats.append('\n');
+		stats.append("Dropped requests:  ");
+		stats.append(numDropped.get());
+		stats.append('\n');
+		stats.append("Messages sent:     ");
+		stats.append(numMessagesSent);
+		stats.append('\n');
+		stats.append("Messages received: ");
+		stats.append(numMessagesReceived);
+		
+		return stats.toString();
+	}
+}
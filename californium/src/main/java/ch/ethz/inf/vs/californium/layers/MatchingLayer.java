@@ -31,8 +31,6 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
@@ -42,6 +40,9 @@ import ch.ethz.inf.vs.californium.coap.Response;
  * This class matches the request/response pairs using the token option. It must
  * be below the {@link TransferLayer}, which requires set buddies for each
  * message ({@link Response#getRequest()} and {@link Request#getResponse()}).
+ * <p>
+ * The MatchingLayer looks up the {@link Exchange} of each incoming message
+ * once and attaches it to the message for the layers above.
  * 
  * @author Matthias Kovatsch
  */
@@ -49,22 +50,12 @@ public class MatchingLayer extends UpperLayer {
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, RequestResponsePair> pairs = new HashMap<String, RequestResponsePair>();
-	
-// Nested Classes //////////////////////////////////////////////////////////////
-	
-	/*
-	 * Entity class to keep state of transfers
-	 */
-	private static class RequestResponsePair {
-		public String key;
-		public Request request;
-	}
+	private ExchangeStore exchanges;
 	
 	// Constructors ////////////////////////////////////////////////////////////
 	
-	public MatchingLayer() {
-
+	public MatchingLayer(ExchangeStore exchanges) {
+		this.exchanges = exchanges;
 	}
 
 	// I/O implementation //////////////////////////////////////////////////////
@@ -83,14 +74,31 @@ public class MatchingLayer extends UpperLayer {
 	@Override
 	protected void doReceiveMessage(Message msg) {
 
+		// single lookup for all layers above, responses answer requests of this endpoint
+		Exchange exchange = exchanges.get(msg.sequenceKey(), msg instanceof Response);
+		msg.setExchange(exchange);
+		
 		if (msg instanceof Response) {
 
 			Response response = (Response) msg;
 			
-			RequestResponsePair pair = getOpenRequest(msg.sequenceKey());
+			Request request = exchange != null ? exchange.currentRequest : null;
 
+			// reject notifications for canceled observations, CONs were already acknowledged
+			if (request == null && msg.isNonConfirmable() && msg.hasOption(OptionNumberRegistry.OBSERVE)) {
+				
+				LOG.info(String.format("Rejecting notification without observation: %s", msg.key()));
+				
+				try {
+					sendMessageOverLowerLayer(msg.newReject());
+				} catch (IOException e) {
+					LOG.severe(String.format("Failed to reject notification: %s", e.getMessage()));
+				}
+				return;
+			}
+			
 			// check for missing token
-			if (pair == null && response.getToken().length==0) {
+			if (request == null && response.getToken().length==0) {
 				
 				LOG.info(String.format("Remote endpoint failed to echo token: %s", msg.key()));
 				
@@ -100,19 +108,14 @@ public class MatchingLayer extends UpperLayer {
 				return;
 			}
 			
-			if (pair != null) {
+			if (request != null) {
 				
 				// attach request and response to each other
-				response.setRequest(pair.request);
-				pair.request.setResponse(response);
+				response.setRequest(request);
+				request.setResponse(response);
 
 				LOG.finer(String.format("Matched open request: %s", response.sequenceKey()));
 				
-				// TODO: ObservingManager.getInstance().isObserving(msg.exchangeKey());
-				if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
-					removeOpenRequest(response.sequenceKey());
-				}
-				
 			} else {
 			
 				LOG.info(String.format("Dropping unexpected response: %s", response.sequenceKey()));
@@ -124,37 +127,28 @@ public class MatchingLayer extends UpperLayer {
 		deliverMessage(msg);
 	}
 	
-	private RequestResponsePair addOpenRequest(Request request) {
+	private Exchange addOpenRequest(Request request) {
 		
-		// create new Transaction
-		RequestResponsePair exchange = new RequestResponsePair();
-		exchange.key = request.sequenceKey();
-		exchange.request = request;
+		Exchange exchange = request.getExchange();
+		
+		// requests for further blocks are created below the TokenLayer
+		if (exchange == null) {
+			exchange = exchanges.getOrCreate(request.sequenceKey(), true);
+			request.setExchange(exchange);
+		}
 		
 		LOG.finer(String.format("Storing open request: %s", exchange.key));
 		
-		// associate token with Transaction
-		pairs.put(exchange.key, exchange);
+		exchange.currentRequest = request;
 		
 		return exchange;
 	}
 	
-	private RequestResponsePair getOpenRequest(String key) {
-		return pairs.get(key);
-	}
-	
-	private void removeOpenRequest(String key) {
-		
-		RequestResponsePair exchange = pairs.remove(key);
-
-		LOG.finer(String.format("Cleared open request: %s", exchange.key));
-	}
-	
 	public String getStats() {
 		StringBuilder stats = new StringBuilder();
 		
 		stats.append("Open requests: ");
-		stats.append(pairs.size());
+		stats.append(exchanges.size());
 		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
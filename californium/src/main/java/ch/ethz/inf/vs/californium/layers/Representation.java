@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.BlockSource;
+
+/**
+ * The class Representation holds the immutable body of a blockwise transfer.
+ * Blocks are served as slices of the same buffer without copying. Shared
+ * representations are reference-counted by their {@link RepresentationStore}.
+ * A representation can also read its blocks from a {@link BlockSource}, which
+ * is closed on release.
+ * 
+ * @author Matthias Kovatsch
+ */
+class Representation {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(Representation.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+
+	/** The store sharing this representation, null if not shared. */
+	final RepresentationStore store;
+	
+	/** The key within the store (path|version). */
+	final String key;
+	
+	/** The number of transfers using this representation, guarded by the store. */
+	int refCount;
+	
+	private final ByteBuffer data;
+	
+	private final BlockSource source;
+
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	Representation(RepresentationStore store, String key, byte[] body) {
+		this.store = store;
+		this.key = key;
+		this.data = ByteBuffer.wrap(body);
+		this.source = null;
+	}
+
+	/**
+	 * Creates a representation that is not shared.
+	 * 
+	 * @param body the body, which must not be modified afterwards
+	 */
+	Representation(byte[] body) {
+		this(null, null, body);
+	}
+	
+	/**
+	 * Creates a representation that reads its blocks from a source.
+	 * 
+	 * @param source the source of the body
+	 */
+	Representation(BlockSource source) {
+		this.store = null;
+		this.key = null;
+		this.data = null;
+		this.source = source;
+	}
+
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the size of the body.
+	 * 
+	 * @return the number of bytes, or -1 if the source does not know it
+	 */
+	public int size() {
+		return source != null ? source.size() : data.capacity();
+	}
+	
+	/**
+	 * Returns a view of a part of the body, shorter at the end of the body.
+	 * 
+	 * @param offset the start of the part
+	 * @param length the maximum length of the part
+	 * @return a new buffer sharing the content, empty if the source failed
+	 */
+	public ByteBuffer slice(int offset, int length) {
+		
+		if (source != null) {
+			try {
+				return source.read(offset, length);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to read block source: %s", e.getMessage()));
+				return ByteBuffer.allocate(0);
+			}
+		}
+		
+		ByteBuffer slice = data.duplicate();
+		slice.position(Math.min(offset, data.capacity()));
+		slice.limit(Math.min(offset + length, data.capacity()));
+		return slice.slice();
+	}
+	
+	/**
+	 * Checks if the given body equals this representation.
+	 */
+	boolean matches(byte[] body) {
+		return Arrays.equals(data.array(), body);
+	}
+	
+	/**
+	 * Signals that a transfer no longer uses this representation.
+	 */
+	public void release() {
+		if (store != null) {
+			store.release(this);
+		} else if (source != null) {
+			source.close();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+
+/**
+ * The class RepresentationStore shares the bodies of outgoing Block2 transfers
+ * between all clients downloading the same version of a resource. A version
+ * is identified by the resource path and the ETag of the response, or by a
+ * hash of the body if no ETag is set. Representations are removed once the
+ * last transfer using them is released.
+ * <p>
+ * While a representation is stored, its version stays pinned: clients that
+ * continue or resume a download with its ETag in an If-Match option are served
+ * from it, even if the resource has changed in the meantime.
+ * 
+ * @author Matthias Kovatsch
+ */
+class RepresentationStore {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(RepresentationStore.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private Map<String, Representation> representations = new HashMap<String, Representation>();
+	
+	/** The bytes held by stored representations. */
+	private long numBytes;
+	
+	private long numShared;
+	private long numPinned;
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Returns the stored representation for the response body, or stores a
+	 * new one. The caller must release it when the transfer ends.
+	 * 
+	 * @param path the Uri-Path of the resource
+	 * @param response the complete response
+	 * @return a representation with the body of the response
+	 */
+	public Representation acquire(String path, Message response) {
+		
+		byte[] body = response.getPayload();
+		
+		Option etag = response.getFirstOption(OptionNumberRegistry.ETAG);
+		String key = etag != null
+				? String.format("%s|%s", path, Option.hex(etag.getRawValue()))
+				: String.format("%s|%d|%08x", path, body.length, Arrays.hashCode(body));
+		
+		synchronized (this) {
+			
+			Representation representation = representations.get(key);
+			
+			if (representation != null) {
+				
+				if (representation.matches(body)) {
+					++representation.refCount;
+					++numShared;
+					
+					LOG.finer(String.format("Sharing representation: %s (%d transfers)", key, representation.refCount));
+					
+					return representation;
+				}
+				
+				// changed body without new ETag or hash collision
+				LOG.info(String.format("Representation differs from stored version, not sharing: %s", key));
+				return new Representation(body);
+			}
+			
+			representation = new Representation(this, key, body);
+			representation.refCount = 1;
+			
+			representations.put(key, representation);
+			numBytes += body.length;
+			
+			LOG.finer(String.format("Stored new representation: %s", key));
+			
+			return representation;
+		}
+	}
+	
+	/**
+	 * Returns the stored representation of a pinned version. The caller must
+	 * release it when the transfer ends.
+	 * 
+	 * @param path the Uri-Path of the resource
+	 * @param etag the ETag of the version
+	 * @return the representation, or null if no transfer uses the version
+	 */
+	public synchronized Representation lookup(String path, byte[] etag) {
+		
+		Representation representation = representations.get(String.format("%s|%s", path, Option.hex(etag)));
+		
+		if (representation != null) {
+			++representation.refCount;
+			++numPinned;
+			
+			LOG.finer(String.format("Serving pinned representation: %s (%d transfers)", representation.key, representation.refCount));
+		}
+		
+		return representation;
+	}
+	
+	synchronized void release(Representation representation) {
+		
+		if (--representation.refCount <= 0 && representations.get(representation.key) == representation) {
+			
+			representations.remove(representation.key);
+			numBytes -= representation.size();
+			
+			LOG.finer(String.format("Removed representation: %s", representation.key));
+		}
+	}
+	
+	/**
+	 * Returns the bytes that are freed when a transfer releases the given
+	 * representation, i.e., its size if no other transfer uses it.
+	 * 
+	 * @param representation the representation of a transfer
+	 * @return the bytes freed by the release
+	 */
+	synchronized long getReleasable(Representation representation) {
+		return representation.refCount <= 1 && representations.get(representation.key) == representation ? representation.size() : 0;
+	}
+	
+	/**
+	 * Returns the number of bytes held by all stored representations.
+	 * 
+	 * @return the stored bytes
+	 */
+	synchronized long getBytes() {
+		return numBytes;
+	}
+	
+	public synchronized String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		stats.append("Representations: ");
+		stats.append(representations.size());
+		stats.append(" (");
+		stats.append(numBytes);
+		stats.append(" bytes)\n");
+		stats.append("Shared transfers: ");
+		stats.append(numShared);
+		stats.append('\n');
+		stats.append("Pinned transfers: ");
+		stats.append(numPinned);
+		
+		return stats.toString();
+	}
+	
+// Static Methods //////////////////////////////////////////////////////////////
+	
+	/**
+	 * Generates an ETag from the content of a body, so that every version of
+	 * a resource served blockwise can be identified.
+	 * 
+	 * @param body the body
+	 * @return a 4-byte ETag
+	 */
+	public static byte[] tag(byte[] body) {
+		
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		long value = crc.getValue();
+		
+		return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+	}
+}
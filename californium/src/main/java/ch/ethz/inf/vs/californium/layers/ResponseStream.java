@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * The class ResponseStream hands the blocks of a Block2 download to the
+ * {@link Request} that enabled response streaming. Blocks are buffered in
+ * order and passed on by a task on the executor shared by all streams of the
+ * {@link TransferLayer}, so that a slow application does not block the
+ * receiver thread. The task returns once the buffer is drained and is
+ * scheduled again by the next block. While the buffer is full, the
+ * {@link TransferLayer} holds back the demand for further blocks until the
+ * application has consumed half of the buffer. If the application fails, the
+ * download is aborted right away and the request completes with an error.
+ * 
+ * @author Matthias Kovatsch
+ */
+class ResponseStream implements Runnable {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(ResponseStream.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private final Request request;
+	
+	/** The response passed to the callbacks. */
+	private final Response response;
+	
+	/** The number of blocks buffered before fetching pauses. */
+	private final int capacity;
+	
+	/** Aborts the download when the application fails. */
+	private final Runnable failure;
+	
+	/** Runs the consumer task. */
+	private final Executor executor;
+	
+	private LinkedList<byte[]> blocks = new LinkedList<byte[]>();
+	
+	/** The demand held back while the buffer is full. */
+	private Runnable resume;
+	
+	/** Delivers the response after the last block, set once all blocks were offered. */
+	private Runnable completion;
+	
+	private boolean closed;
+	
+	/** Set while the consumer task is queued or running. */
+	private boolean scheduled;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	ResponseStream(Request request, Response response, int capacity, Executor executor, Runnable failure) {
+		this.request = request;
+		this.response = response;
+		this.capacity = Math.max(1, capacity);
+		this.executor = executor;
+		this.failure = failure;
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Appends the next block of the body.
+	 * 
+	 * @param block the payload of the block
+	 */
+	synchronized void offer(byte[] block) {
+		
+		if (closed) {
+			return;
+		}
+		
+		blocks.add(block);
+		schedule();
+	}
+	
+	/**
+	 * Holds back the demand for further blocks if the buffer is full.
+	 * 
+	 * @param demand requests further blocks once the application caught up
+	 * @return true if the demand was held back or the stream is closed
+	 */
+	synchronized boolean pause(Runnable demand) {
+		
+		if (closed) {
+			return true;
+		}
+		if (blocks.size() < capacity) {
+			return false;
+		}
+		
+		LOG.finer(String.format("Pausing download for slow consumer: %s", response.sequenceKey()));
+		
+		resume = demand;
+		return true;
+	}
+	
+	/**
+	 * Signals that all blocks were offered.
+	 * 
+	 * @param completion delivers the response after the application consumed the last block
+	 */
+	synchronized void finish(Runnable completion) {
+		this.completion = completion;
+		schedule();
+	}
+	
+	/**
+	 * Drops the buffered blocks of an aborted download.
+	 */
+	synchronized void close() {
+		closed = true;
+		blocks.clear();
+		resume = null;
+	}
+	
+	/*
+	 * Queues the consumer task unless it is already queued or running, called
+	 * while holding the lock.
+	 */
+	private void schedule() {
+		if (!scheduled && !closed) {
+			scheduled = true;
+			executor.execute(this);
+		}
+	}
+	
+	public void run() {
+		
+		while (true) {
+			
+			byte[] block;
+			Runnable demand = null;
+			Runnable done = null;
+			
+			synchronized (this) {
+				
+				if (closed || blocks.isEmpty() && completion==null) {
+					// drained, the next block schedules the task again
+					scheduled = false;
+					return;
+				}
+				
+				if (blocks.isEmpty()) {
+					// all blocks consumed, nothing follows the completion
+					done = completion;
+					completion = null;
+					closed = true;
+					block = null;
+				} else {
+					block = blocks.removeFirst();
+				}
+				
+				// fetch ahead while the application works through the rest
+				if (resume!=null && blocks.size() <= capacity/2) {
+					demand = resume;
+					resume = null;
+				}
+			}
+			
+			if (done!=null) {
+				try {
+					request.handleResponseCompleted(response);
+				} catch (RuntimeException e) {
+					fail(e);
+					return;
+				}
+				done.run();
+				return;
+			}
+			
+			if (demand!=null) {
+				LOG.finer(String.format("Resuming download: %s", response.sequenceKey()));
+				demand.run();
+			}
+			
+			try {
+				request.handleResponseBlock(response, block);
+			} catch (RuntimeException e) {
+				fail(e);
+				return;
+			}
+		}
+	}
+	
+	private void fail(RuntimeException e) {
+		
+		LOG.severe(String.format("Response stream consumer failed, aborting download: %s", e.getMessage()));
+		
+		close();
+		failure.run();
+	}
+}
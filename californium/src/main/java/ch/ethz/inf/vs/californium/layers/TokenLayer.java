@@ -31,10 +31,9 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Message;
@@ -48,15 +47,23 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * This class takes care of unique tokens for each sequence of request/response
  * exchanges.
  * Additionally, the TokenLayer takes care of an overall timeout for each
- * request/response exchange.
+ * request/response exchange and removes completed exchanges from the
+ * {@link ExchangeStore}. An observe relationship ends when no fresh
+ * notification arrived within the Max-Age of the previous one plus the
+ * overall timeout, which also releases its token.
  * 
  * @author Matthias Kovatsch
  */
 public class TokenLayer extends UpperLayer {
 
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	/** The number of canceled tasks after which the timer is purged. */
+	private static final int PURGE_INTERVAL = 1024;
+	
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, RequestResponseSequence> exchanges = new HashMap<String, RequestResponseSequence>();
+	private ExchangeStore exchanges;
 
 	/** A timer for scheduling overall request timeouts. */
 	private Timer timer = new Timer(true);
@@ -64,43 +71,38 @@ public class TokenLayer extends UpperLayer {
 	/** The time to wait for requests to complete, in milliseconds. */
 	private int sequenceTimeout;
 	
-// Nested Classes //////////////////////////////////////////////////////////////
+	/** The number of tasks canceled by notifications, to purge the timer. */
+	private AtomicInteger canceledTasks = new AtomicInteger();
 	
-	/*
-	 * Entity class to keep state of transfers
-	 */
-	private static class RequestResponseSequence {
-		public String key;
-		public Request request;
-		public TimerTask timeoutTask;
-	}
+// Nested Classes //////////////////////////////////////////////////////////////
 	
 	/*
 	 * Utility class to provide transaction timeouts
 	 */
 	private class TimeoutTask extends TimerTask {
 		
-		private RequestResponseSequence sequence;
+		private Exchange exchange;
 
-		public TimeoutTask(RequestResponseSequence sequence) {
-			this.sequence = sequence;
+		public TimeoutTask(Exchange exchange) {
+			this.exchange = exchange;
 		}
 		
 		@Override
 		public void run() {
-			transferTimedOut(sequence);
+			transferTimedOut(exchange);
 		}
 	}
 	
 	// Constructors ////////////////////////////////////////////////////////////
 	
-	public TokenLayer(int sequenceTimeout) {
+	public TokenLayer(ExchangeStore exchanges, int sequenceTimeout) {
 		// member initialization
+		this.exchanges = exchanges;
 		this.sequenceTimeout = sequenceTimeout;
 	}
 	
-	public TokenLayer() {
-		this(Properties.std.getInt("DEFAULT_OVERALL_TIMEOUT"));
+	public TokenLayer(ExchangeStore exchanges) {
+		this(exchanges, Properties.std.getInt("DEFAULT_OVERALL_TIMEOUT"));
 	}
 
 	// I/O implementation //////////////////////////////////////////////////////
@@ -133,10 +135,11 @@ public class TokenLayer extends UpperLayer {
 
 			Response response = (Response) msg;
 			
-			RequestResponseSequence sequence = getExchange(msg.sequenceKey());
+			// attached by the MatchingLayer
+			Exchange exchange = msg.getExchange();
 
 			// check for missing token
-			if (sequence == null && response.getToken().length==0) {
+			if (exchange == null && response.getToken().length==0) {
 				
 				LOG.warning(String.format("Remote endpoint failed to echo token: %s", msg.key()));
 				
@@ -146,14 +149,13 @@ public class TokenLayer extends UpperLayer {
 				return;
 			}
 			
-			if (sequence != null) {
-				
-				// cancel timeout
-				sequence.timeoutTask.cancel();
+			if (exchange != null) {
 				
 				// TODO separate observe registry
 				if (msg.getFirstOption(OptionNumberRegistry.OBSERVE)==null) {
-					removeExchange(msg.sequenceKey());
+					removeExchange(exchange);
+				} else {
+					observed(exchange, msg.getMaxAge());
 				}
 
 				LOG.info(String.format("Incoming response from %s: %s // RTT: %fms", ((Response) msg).getRequest().getUriPath(), msg.sequenceKey(), ((Response) msg).getRTT()));
@@ -173,54 +175,102 @@ public class TokenLayer extends UpperLayer {
 		}
 	}
 	
-	private synchronized RequestResponseSequence addExchange(Request request) {
+	private Exchange addExchange(Request request) {
 		
-		// be aware when manually setting tokens, as request/response will be replace
-		removeExchange(request.sequenceKey());
+		Exchange exchange = exchanges.getOrCreate(request.sequenceKey(), true);
 		
-		// create new Transaction
-		RequestResponseSequence sequence = new RequestResponseSequence();
-		sequence.key = request.sequenceKey();
-		sequence.request = request;
-		sequence.timeoutTask = new TimeoutTask(sequence);
+		// be aware when manually setting tokens, as request/response will be replaced
+		if (exchange.timeoutTask != null) {
+			exchange.timeoutTask.cancel();
+		}
 		
-		// associate token with Transaction
-		exchanges.put(sequence.key, sequence);
+		exchange.request = request;
+		exchange.observing = false;
+		exchange.timeoutTask = new TimeoutTask(exchange);
 		
-		timer.schedule(sequence.timeoutTask, sequenceTimeout);
+		request.setExchange(exchange);
+		
+		// per-request time limit
+		timer.schedule(exchange.timeoutTask, request.getTimeout() > 0 ? request.getTimeout() : sequenceTimeout);
 
-		LOG.fine(String.format("Stored new exchange: %s", sequence.key));
+		LOG.fine(String.format("Stored new exchange: %s", exchange.key));
 		
-		return sequence;
+		return exchange;
 	}
 	
-	private RequestResponseSequence getExchange(String key) {
-		return exchanges.get(key);
+	/*
+	 * Replaces the timeout of an observed exchange, so that it ends once the
+	 * notifications are no longer fresh.
+	 */
+	private void observed(Exchange exchange, int maxAge) {
+		
+		synchronized (exchange) {
+			
+			if (exchange.removed) {
+				return;
+			}
+			
+			if (exchange.timeoutTask != null && exchange.timeoutTask.cancel() && canceledTasks.incrementAndGet() % PURGE_INTERVAL == 0) {
+				timer.purge();
+			}
+			
+			exchange.observing = true;
+			exchange.timeoutTask = new TimeoutTask(exchange);
+			
+			timer.schedule(exchange.timeoutTask, maxAge * 1000L + sequenceTimeout);
+		}
 	}
 	
-	private synchronized void removeExchange(String key) {
+	/**
+	 * Removes the exchange of a request and releases its token.
+	 * 
+	 * @param request the request to cancel
+	 * @return true if the exchange was still open
+	 */
+	public boolean cancelExchange(Request request) {
 		
-		RequestResponseSequence exchange = exchanges.remove(key);
+		Exchange exchange = request.getExchange();
 		
-		if (exchange!=null) {
+		// the token might have been reused by another request
+		if (exchange != null && exchange.request == request && removeExchange(exchange)) {
 			
-			exchange.timeoutTask.cancel();
+			LOG.fine(String.format("Canceled exchange: %s", exchange.key));
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean removeExchange(Exchange exchange) {
+		
+		if (exchanges.remove(exchange)) {
+			
+			if (exchange.timeoutTask != null) {
+				exchange.timeoutTask.cancel();
+			}
 			
 			TokenManager.getInstance().releaseToken(exchange.request.getToken());
 	
 			LOG.finer(String.format("Cleared exchange: %s", exchange.key));
+			
+			return true;
 		}
+		return false;
 	}
 	
-	private void transferTimedOut(RequestResponseSequence exchange) {
-		
-		// cancel transaction
-		removeExchange(exchange.key);
+	private void transferTimedOut(Exchange exchange) {
 		
-		LOG.warning(String.format("Request/Response exchange timed out: %s", exchange.request.sequenceKey()));
-		
-		// call event handler
-		exchange.request.handleTimeout();
+		// cancel transaction, unless completed concurrently
+		if (removeExchange(exchange)) {
+			
+			if (exchange.observing) {
+				LOG.info(String.format("Observe relationship expired: %s", exchange.request.sequenceKey()));
+			} else {
+				LOG.warning(String.format("Request/Response exchange timed out: %s", exchange.request.sequenceKey()));
+			}
+			
+			// call event handler
+			exchange.request.handleTimeout();
+		}
 	}
 	
 	public String getStats() {
@@ -31,8 +31,10 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -40,6 +42,8 @@ import java.util.TimerTask;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.coap.UnsupportedRequest;
 import ch.ethz.inf.vs.californium.util.Properties;
@@ -82,6 +86,9 @@ public class TransactionLayer extends UpperLayer {
 	/** The Table to store the transactions of outgoing messages. */
 	private Map<String, Transaction> transactionTable = new HashMap<String, Transaction>();
 
+	/** The transactions to be taken over by the next message with the same token, by sequence key. */
+	private Map<String, Transaction> supersededTable = new HashMap<String, Transaction>();
+
 	/** The cache for duplicate detection. */
 	private MessageCache dupCache = new MessageCache();
 
@@ -98,6 +105,8 @@ public class TransactionLayer extends UpperLayer {
 		RetransmitTask retransmitTask;
 		int numRetransmit;
 		int timeout; // to satisfy RESPONSE_RANDOM_FACTOR
+		long due; // time of the next retransmission
+		long sent; // time of the last transmission
 	}
 
 	/**
@@ -166,7 +175,7 @@ public class TransactionLayer extends UpperLayer {
 		if (msg.isConfirmable()) {
 
 			// create new transmission context for retransmissions
-			addTransaction(msg);
+			addTransaction(msg, takeSuperseded(msg));
 
 		} else if (msg.isReply()) {
 
@@ -249,6 +258,14 @@ public class TransactionLayer extends UpperLayer {
 				// transmission completed
 				removeTransaction(transaction);
 				
+				// tell the layers above whether the answered message was retransmitted
+				msg.setRetransmissioned(transaction.numRetransmit);
+				
+				// feed back the health of observers
+				if (msg.getType()==Message.messageType.ACK && transaction.msg instanceof Response && transaction.msg.hasOption(OptionNumberRegistry.OBSERVE)) {
+					ObservingManager.getInstance().handleAcknowledgement((Response) transaction.msg, transaction.numRetransmit, System.currentTimeMillis() - transaction.sent);
+				}
+				
 				if (msg.isEmptyACK()) {
 					
 					// transaction is complete, no information for higher layers
@@ -287,20 +304,111 @@ public class TransactionLayer extends UpperLayer {
 		deliverMessage(msg);
 	}
 
+	/**
+	 * Stops the retransmissions of a confirmable message.
+	 * 
+	 * @param msg the message to cancel
+	 */
+	public void cancelTransaction(Message msg) {
+		
+		Transaction transaction = getTransaction(msg);
+		
+		// the key might be matched by a newer message
+		if (transaction != null && transaction.msg == msg) {
+			removeTransaction(transaction);
+			LOG.fine(String.format("Canceled transaction for %s", msg.key()));
+		}
+	}
+
+	/**
+	 * Stops the retransmissions of all requests of an exchange, e.g., the
+	 * block requests of a windowed download that are still in flight.
+	 * 
+	 * @param exchange the removed exchange
+	 */
+	public synchronized void cancelTransactions(Exchange exchange) {
+		
+		List<Transaction> canceled = new ArrayList<Transaction>();
+		
+		for (Transaction transaction : transactionTable.values()) {
+			if (transaction.msg instanceof Request && transaction.msg.getExchange() == exchange) {
+				canceled.add(transaction);
+			}
+		}
+		
+		for (Transaction transaction : canceled) {
+			removeTransaction(transaction);
+			LOG.fine(String.format("Canceled transaction for %s", transaction.msg.key()));
+		}
+	}
+
+	/**
+	 * Lets the next confirmable message with the same peer and token replace
+	 * an unacknowledged one, e.g., a newer notification for an observer. The
+	 * replaced message is no longer retransmitted and the replacement
+	 * continues its retransmission counter and schedule, so that an
+	 * unreachable peer still times out.
+	 * 
+	 * @param msg the unacknowledged message to replace
+	 * @return true if the message is still unacknowledged and will be replaced
+	 */
+	public synchronized boolean supersedeTransaction(Message msg) {
+		
+		Transaction transaction = getTransaction(msg);
+		
+		if (transaction != null && transaction.msg == msg) {
+			supersededTable.put(msg.sequenceKey(), transaction);
+			return true;
+		}
+		return false;
+	}
+
 	// Internal ////////////////////////////////////////////////////////////////
 
+	private synchronized Transaction takeSuperseded(Message msg) {
+		
+		Transaction previous = supersededTable.remove(msg.sequenceKey());
+		
+		// the superseded message might have been acknowledged in the meantime
+		if (previous != null && transactionTable.get(previous.msg.transactionKey()) == previous) {
+			
+			removeTransaction(previous);
+			
+			LOG.info(String.format("Replacing unacknowledged %s with %s", previous.msg.key(), msg.key()));
+			
+			return previous;
+		}
+		return null;
+	}
+
 	private void handleIncomingReset(Message msg) {
 		
 		// remove possible observers
-		ObservingManager.getInstance().removeObserver(msg.getPeerAddress().toString(), msg.getMID());
+		ObservingManager.getInstance().removeObserver(msg.getPeerAddress(), msg.getMID());
 	}
 
 	private void handleResponseTimeout(Transaction transaction) {
 
 		final int max = Properties.std.getInt("MAX_RETRANSMIT");
 		
+		// the exchange timed out or was canceled, its token might already be reused
+		Exchange exchange = transaction.msg.getExchange();
+		if (transaction.msg instanceof Request && exchange != null && exchange.disposed) {
+			
+			removeTransaction(transaction);
+			return;
+		}
+		
 		// check if limit of retransmissions reached
 		if (transaction.numRetransmit < max) {
+			
+			// stop notifying unhealthy observers
+			if (transaction.msg instanceof Response && transaction.msg.hasOption(OptionNumberRegistry.OBSERVE)
+					&& !ObservingManager.getInstance().handleRetransmission((Response) transaction.msg)) {
+				
+				removeTransaction(transaction);
+				return;
+			}
 
 			// retransmit message
 			transaction.msg.setRetransmissioned(++transaction.numRetransmit); 
@@ -308,6 +416,7 @@ public class TransactionLayer extends UpperLayer {
 			LOG.info(String.format("Retransmitting %s (%d of %d)", transaction.msg.key(), transaction.numRetransmit, max));
 
 			try {
+				transaction.sent = System.currentTimeMillis();
 				sendMessageOverLowerLayer(transaction.msg);
 			} catch (IOException e) {
 
@@ -326,25 +435,38 @@ public class TransactionLayer extends UpperLayer {
 			removeTransaction(transaction);
 			
 			// cancel observations
-			ObservingManager.getInstance().removeObserver(transaction.msg.getPeerAddress().toString());
+			ObservingManager.getInstance().removeObserver(transaction.msg.getPeerAddress());
 
 			// invoke event handler method
 			transaction.msg.handleTimeout();
 		}
 	}
 
-	private synchronized Transaction addTransaction(Message msg) {
+	private synchronized Transaction addTransaction(Message msg, Transaction previous) {
 
 		// initialize new transmission context
 		Transaction transaction = new Transaction();
 		transaction.msg = msg;
 		transaction.numRetransmit = 0;
 		transaction.retransmitTask = null;
+		transaction.sent = System.currentTimeMillis();
 
 		transactionTable.put(msg.transactionKey(), transaction);
 
-		// schedule first retransmission
-		scheduleRetransmission(transaction);
+		if (previous != null) {
+			
+			// continue the schedule of the replaced message
+			transaction.numRetransmit = previous.numRetransmit;
+			transaction.timeout = previous.timeout;
+			transaction.due = previous.due;
+			transaction.retransmitTask = new RetransmitTask(transaction);
+			
+			timer.schedule(transaction.retransmitTask, Math.max(0L, previous.due - System.currentTimeMillis()));
+			
+		} else {
+			// schedule first retransmission
+			scheduleRetransmission(transaction);
+		}
 		
 		LOG.finest(String.format("Stored new transaction for %s", msg.key()));
 
@@ -364,6 +486,10 @@ public class TransactionLayer extends UpperLayer {
 		// remove transaction from table
 		transactionTable.remove(transaction.msg.transactionKey());
 		
+		if (supersededTable.get(transaction.msg.sequenceKey()) == transaction) {
+			supersededTable.remove(transaction.msg.sequenceKey());
+		}
+		
 		LOG.finest(String.format("Cleared transaction for %s", transaction.msg.key()));
 	}
 
@@ -387,6 +513,7 @@ public class TransactionLayer extends UpperLayer {
 		}
 
 		// schedule retransmission task
+		transaction.due = System.currentTimeMillis() + transaction.timeout;
 		timer.schedule(transaction.retransmitTask, transaction.timeout);
 	}
 	
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+/**
+ * The class TransferBudget bounds the memory held by the blockwise transfers
+ * of a {@link TransferLayer}. It accounts for the buffered bodies of incoming
+ * transfers and the shared representations of outgoing transfers.
+ * <p>
+ * Transfers are kept in least-recently-used order. They expire after being
+ * idle for the given timeout, and when a transfer does not fit into the
+ * budget, the least recently used other transfers are evicted first. Only
+ * transfers whose release frees memory are evicted, i.e., not those sharing
+ * a representation with other transfers. A transfer that does not fit on its
+ * own is rejected right away.
+ * 
+ * @author Matthias Kovatsch
+ */
+class TransferBudget {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(TransferBudget.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	/** The tracked transfers with their exchanges in access order. */
+	private Map<TransferContext, Exchange> transfers = new LinkedHashMap<TransferContext, Exchange>(16, 0.75f, true);
+	
+	private RepresentationStore representations;
+	
+	/** The maximum number of bytes held by transfers, 0 for no limit. */
+	private long limit;
+	
+	/** The time after which an unused transfer is freed, in milliseconds. */
+	private int idleTimeout;
+	
+	/** The bytes held in memory by incoming transfers. */
+	private long incomingBytes;
+	
+	/** The timer daemon to expire idle transfers. */
+	private Timer timer = new Timer(true);
+	
+	private long numExpired;
+	private long numEvicted;
+	private long numRejected;
+	
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/*
+	 * Utility class to expire idle transfers periodically
+	 */
+	private class ExpiryTask extends TimerTask {
+		@Override
+		public void run() {
+			expire();
+		}
+	}
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	TransferBudget(RepresentationStore representations, long limit, int idleTimeout, int sweepInterval) {
+		this.representations = representations;
+		this.limit = limit;
+		this.idleTimeout = idleTimeout;
+		timer.schedule(new ExpiryTask(), sweepInterval, sweepInterval);
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Starts accounting for a new transfer of the given exchange.
+	 * 
+	 * @param exchange the exchange holding the transfer
+	 * @param transfer the new transfer context
+	 */
+	synchronized void track(Exchange exchange, TransferContext transfer) {
+		transfer.budget = this;
+		transfers.put(transfer, exchange);
+		touch(transfer);
+	}
+	
+	/**
+	 * Marks the transfer as used and updates the bytes charged for its body.
+	 * 
+	 * @param transfer the tracked transfer context
+	 */
+	synchronized void touch(TransferContext transfer) {
+		
+		if (transfers.get(transfer)==null) {
+			return;
+		}
+		
+		transfer.lastActivity = System.currentTimeMillis();
+		
+		// spilled bodies only keep the stream buffer in memory
+		long charge = transfer.body!=null && !transfer.body.isSpilled() ? transfer.body.size() : 0;
+		incomingBytes += charge - transfer.charged;
+		transfer.charged = charge;
+	}
+	
+	/**
+	 * Stops accounting for a transfer, e.g., on completion or disposal.
+	 * 
+	 * @param transfer the transfer context
+	 */
+	synchronized void untrack(TransferContext transfer) {
+		if (transfers.remove(transfer)!=null) {
+			incomingBytes -= transfer.charged;
+			transfer.charged = 0;
+		}
+	}
+	
+	/**
+	 * Checks if the transfer fits into the budget and evicts the least
+	 * recently used other transfers until it does. If the transfer alone
+	 * exceeds the budget or not enough memory can be freed, it is evicted
+	 * itself.
+	 * 
+	 * @param transfer the tracked transfer context that just grew
+	 * @return true if the transfer can continue, false if it was rejected
+	 */
+	synchronized boolean admit(TransferContext transfer) {
+		
+		if (limit <= 0) {
+			return true;
+		}
+		
+		// do not evict others for a transfer that cannot fit anyway
+		long size = transfer.charged + (transfer.representation!=null && transfer.representation.store!=null ? transfer.representation.size() : 0);
+		if (size > limit) {
+			return reject(transfer);
+		}
+		
+		while (getBytes() > limit) {
+			
+			Map.Entry<TransferContext, Exchange> victim = null;
+			for (Map.Entry<TransferContext, Exchange> entry : transfers.entrySet()) {
+				if (entry.getKey()!=transfer && getReleasable(entry.getKey()) > 0) {
+					victim = entry;
+					break;
+				}
+			}
+			
+			if (victim==null) {
+				return reject(transfer);
+			}
+			
+			LOG.info(String.format("Evicting blockwise transfer for budget: %s", victim.getKey().cache.sequenceKey()));
+			
+			evict(victim.getKey(), victim.getValue());
+			++numEvicted;
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Evicts a transfer that does not fit into the budget.
+	 */
+	private boolean reject(TransferContext transfer) {
+		
+		LOG.info(String.format("Rejecting blockwise transfer exceeding budget of %d bytes: %s", limit, transfer.cache.sequenceKey()));
+		
+		evict(transfer, transfers.get(transfer));
+		++numRejected;
+		return false;
+	}
+	
+	/*
+	 * Returns the bytes freed by evicting a transfer.
+	 */
+	private long getReleasable(TransferContext transfer) {
+		return transfer.charged + (transfer.representation!=null && transfer.representation.store!=null ? representations.getReleasable(transfer.representation) : 0);
+	}
+	
+	/*
+	 * Frees all transfers that were not used for the idle timeout.
+	 */
+	private synchronized void expire() {
+		
+		long stale = System.currentTimeMillis() - idleTimeout;
+		
+		Iterator<Map.Entry<TransferContext, Exchange>> it = transfers.entrySet().iterator();
+		while (it.hasNext()) {
+			
+			Map.Entry<TransferContext, Exchange> entry = it.next();
+			
+			// access order: all following transfers are more recent
+			if (entry.getKey().lastActivity > stale) {
+				break;
+			}
+			
+			LOG.fine(String.format("Expired idle blockwise transfer: %s", entry.getKey().cache.sequenceKey()));
+			
+			it.remove();
+			incomingBytes -= entry.getKey().charged;
+			entry.getKey().charged = 0;
+			
+			evict(entry.getKey(), entry.getValue());
+			++numExpired;
+		}
+	}
+	
+	/*
+	 * Detaches the transfer from its exchange and releases its buffers.
+	 */
+	private void evict(TransferContext transfer, Exchange exchange) {
+		
+		if (exchange!=null) {
+			if (exchange.incoming==transfer) {
+				exchange.incoming = null;
+			}
+			if (exchange.outgoing==transfer) {
+				exchange.outgoing = null;
+			}
+		}
+		
+		// also untracks the transfer
+		transfer.dispose();
+	}
+	
+	/*
+	 * Returns the bytes currently held by all transfers.
+	 */
+	private long getBytes() {
+		return incomingBytes + representations.getBytes();
+	}
+	
+	public synchronized String getStats() {
+		StringBuilder stats = new StringBuilder();
+		
+		stats.append("Transfers: ");
+		stats.append(transfers.size());
+		stats.append(" (");
+		stats.append(getBytes());
+		stats.append(limit > 0 ? String.format(" of %d bytes)\n", limit) : " bytes)\n");
+		stats.append("Expired transfers:  ");
+		stats.append(numExpired);
+		stats.append('\n');
+		stats.append("Evicted transfers:  ");
+		stats.append(numEvicted);
+		stats.append('\n');
+		stats.append("Rejected transfers: ");
+		stats.append(numRejected);
+		
+		return stats.toString();
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.layers;
+
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.ChunkHandler;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.util.ChunkedBuffer;
+
+/**
+ * The class TransferContext keeps the state of a single blockwise transfer
+ * in the {@link TransferLayer}. It is stored with the {@link Exchange} the
+ * transfer belongs to.
+ * 
+ * @author Matthias Kovatsch
+ */
+class TransferContext {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(TransferContext.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	public Message cache;
+	public String uriPath;
+	public BlockOption current;
+	
+	/** The body received so far, null when streamed to a handler. */
+	public ChunkedBuffer body;
+	
+	/** The handler for a streamed request body. */
+	public ChunkHandler handler;
+	
+	/** The body to send, null for incoming transfers. */
+	public Representation representation;
+	
+	/** Hands a downloaded body to the application block by block, null if not streamed. */
+	ResponseStream stream;
+	
+	/** The state of a windowed download, null for stop-and-wait. */
+	BlockWindow window;
+	
+	/** The budget accounting for this transfer, null if not tracked. */
+	TransferBudget budget;
+	
+	/** The time of the last block, in milliseconds. */
+	long lastActivity;
+	
+	/** The time the last block or block request was sent, in milliseconds. */
+	long lastSent;
+	
+	/** The bytes of the body charged against the budget. */
+	long charged;
+	
+	/** The offset of the body within the representation, above 0 for resumed downloads. */
+	int offset;
+	
+	/** The number of times the download started over because the representation changed. */
+	int restarts;
+	
+	/** Set while waiting for the first block after a restart. */
+	volatile boolean restarting;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	TransferContext(Message msg) {
+		
+		if (msg instanceof Request) {
+			this.cache = msg;
+			this.uriPath = msg.getUriPath();
+			this.current = (BlockOption) msg.getFirstOption(OptionNumberRegistry.BLOCK1);
+		} else if (msg instanceof Response) {
+			
+			msg.requiresToken(false); // FIXME check if still required after new TokenLayer
+			
+			this.cache = msg;
+			this.uriPath = ((Response)msg).getRequest().getUriPath();
+			this.current = (BlockOption) msg.getFirstOption(OptionNumberRegistry.BLOCK2);
+		}
+		
+		LOG.finest(String.format("Created new transfer context for %s: %s", this.uriPath, msg.sequenceKey()));
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Releases the buffers of an abandoned transfer.
+	 */
+	void dispose() {
+		if (body != null) {
+			body.dispose();
+			body = null;
+		}
+		if (representation != null) {
+			representation.release();
+			representation = null;
+		}
+		if (stream != null) {
+			stream.close();
+		}
+		if (budget != null) {
+			budget.untrack(this);
+		}
+	}
+}
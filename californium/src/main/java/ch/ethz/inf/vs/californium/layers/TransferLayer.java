@@ -31,11 +31,20 @@
 package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.BlockSource;
+import ch.ethz.inf.vs.californium.coap.ChunkHandler;
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.Message;
 import ch.ethz.inf.vs.californium.coap.Option;
@@ -43,6 +52,7 @@ import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.coap.Message.messageType;
+import ch.ethz.inf.vs.californium.util.ChunkedBuffer;
 import ch.ethz.inf.vs.californium.util.Properties;
 
 /**
@@ -58,50 +68,61 @@ import ch.ethz.inf.vs.californium.util.Properties;
  * @author Matthias Kovatsch
  */
 public class TransferLayer extends UpperLayer {
-	
-	private class TransferContext {
-		public Message cache;
-		public String uriPath;
-		public BlockOption current;
-		
-		// TODO: timer
-		
-		TransferContext(Message msg) {
-			
-			if (msg instanceof Request) {
-				this.cache = msg;
-				this.uriPath = msg.getUriPath();
-				this.current = (BlockOption) msg.getFirstOption(OptionNumberRegistry.BLOCK1);
-			} else if (msg instanceof Response) {
-				
-				msg.requiresToken(false); // FIXME check if still required after new TokenLayer
-				
-				this.cache = msg;
-				this.uriPath = ((Response)msg).getRequest().getUriPath();
-				this.current = (BlockOption) msg.getFirstOption(OptionNumberRegistry.BLOCK2);
-			}
-			
-			LOG.finest(String.format("Created new transfer context for %s: %s", this.uriPath, msg.sequenceKey()));
-		}
-	}
-	
 
 // Members /////////////////////////////////////////////////////////////////////
 	
-	private Map<String, TransferContext> incoming = new HashMap<String, TransferContext>();
-	private Map<String, TransferContext> outgoing = new HashMap<String, TransferContext>();
+	private ExchangeStore exchanges;
+	
+	/** Maps a resource path to the handler for streamed request bodies. */
+	private Map<String, ChunkHandler> chunkHandlers = new ConcurrentHashMap<String, ChunkHandler>();
+	
+	/** The bodies of outgoing Block2 transfers, shared between clients. */
+	private RepresentationStore representations = new RepresentationStore();
+	
+	/** Bounds the memory held by transfers and expires idle ones. */
+	private TransferBudget budget;
+	
+	/** Resumes windowed downloads after the server was busy. */
+	private Timer timer = new Timer(true);
+	
+	/** Hands streamed response bodies to the applications. */
+	private ExecutorService streamExecutor = Executors.newFixedThreadPool(Math.max(1, Properties.std.getInt("TRANSFER_STREAM_THREADS")), new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "ResponseStream");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	// default block size used for the transfer
 	private int defaultSZX;
 	
+	/** The block sizes adapted to each peer. */
+	private BlockSizes blockSizes;
+
+	/** The maximum number of Block2 requests in flight for downloads, 1 for stop-and-wait. */
+	private int windowSize;
+	
+	private long numWindowed;
+	private long windowedBytes;
+	private long windowedMillis;
+	
 	// Constructors ////////////////////////////////////////////////////////////
 	
 	/**
 	 * Constructor for a new TransferLayer
 	 * 
+	 * @param exchanges the store for the transfer contexts
 	 * @param defaultBlockSize the block size to use if not indicated by block option
 	 */
-	public TransferLayer(int defaultBlockSize) {
+	public TransferLayer(ExchangeStore exchanges, int defaultBlockSize) {
+		
+		this.exchanges = exchanges;
+		this.budget = new TransferBudget(representations,
+				Properties.std.getInt("TRANSFER_MEMORY_BUDGET"),
+				Properties.std.getInt("TRANSFER_IDLE_TIMEOUT"),
+				Properties.std.getInt("EXCHANGE_SWEEP_INTERVAL"));
+		this.windowSize = Properties.std.getInt("TRANSFER_WINDOW");
 		
 		if (defaultBlockSize==0) {
 			defaultBlockSize = Properties.std.getInt("DEFAULT_BLOCK_SIZE");
@@ -120,41 +141,124 @@ public class TransferLayer extends UpperLayer {
 			// disable outgoing blockwise transfers
 			defaultSZX = -1;
 		}
+		
+		blockSizes = new BlockSizes(defaultSZX, Properties.std.getInt("BLOCK_SIZE_GROW_INTERVAL"));
+	}
+
+	public TransferLayer(ExchangeStore exchanges) {
+		this(exchanges, 0);
 	}
 	
-	public TransferLayer() {
-		this(0);
+	/**
+	 * Sets the number of Block2 requests kept in flight for downloads. With 1,
+	 * the next block is requested only after the previous one arrived.
+	 * 
+	 * @param windowSize the maximum number of requests in flight
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = Math.max(1, windowSize);
 	}
 
-	// I/O implementation //////////////////////////////////////////////////////
+	// Streaming ///////////////////////////////////////////////////////////////
 	
+	/**
+	 * Registers a handler that receives blockwise request bodies to the given
+	 * path block by block instead of the complete body after the last block.
+	 * The request is still delivered after the last block, but without payload.
+	 * 
+	 * @param path the Uri-Path of the resource, e.g., "/firmware"
+	 * @param handler the handler for the blocks
+	 */
+	public void registerChunkHandler(String path, ChunkHandler handler) {
+		chunkHandlers.put(path, handler);
+		LOG.config(String.format("Registered chunk handler: %s", path));
+	}
+	
+	public void unregisterChunkHandler(String path) {
+		if (chunkHandlers.remove(path)!=null) {
+			LOG.config(String.format("Unregistered chunk handler: %s", path));
+		}
+	}
 
-	//TODO ETag matching
+	// I/O implementation //////////////////////////////////////////////////////
 	
 	@Override
 	protected void doSendMessage(Message msg) throws IOException {
 		
-		int sendSZX = defaultSZX;
+		int sendSZX = defaultSZX >= 0 ? blockSizes.get(msg.getPeerAddress()) : defaultSZX;
 		int sendNUM = 0;
 		
 		// block negotiation
 		if (msg instanceof Response && ((Response)msg).getRequest()!=null) {
 			BlockOption buddyBlock = (BlockOption) ((Response)msg).getRequest().getFirstOption(OptionNumberRegistry.BLOCK2);
 			if (buddyBlock!=null) {
-				if (buddyBlock.getSZX()<defaultSZX) {
+				if (buddyBlock.getSZX()<sendSZX) {
 					sendSZX = buddyBlock.getSZX();
+					blockSizes.reportLimit(msg.getPeerAddress(), sendSZX);
+				}
+				// same offset in our block size
+				sendNUM = buddyBlock.getNUM() * buddyBlock.getSize() / BlockOption.decodeSZX(sendSZX);
+			}
+		}
+		
+		BlockSource source = defaultSZX >= 0 ? msg.getPayloadSource() : null;
+		
+		// version of the representation a client continues or resumes
+		Representation pinned = null;
+		
+		if (msg instanceof Response && defaultSZX >= 0) {
+			
+			Response response = (Response) msg;
+			
+			// identify the version of blockwise bodies, sources need an ETag from the resource
+			if (source==null && !msg.hasOption(OptionNumberRegistry.ETAG) && (msg.payloadSize() > BlockOption.decodeSZX(sendSZX) || sendNUM > 0)) {
+				msg.setOption(new Option(RepresentationStore.tag(msg.getPayload()), OptionNumberRegistry.ETAG));
+			}
+			
+			Option ifMatch = sendNUM > 0 ? response.getRequest().getFirstOption(OptionNumberRegistry.IF_MATCH) : null;
+			
+			if (ifMatch!=null && msg.getCode()==CodeRegistry.RESP_CONTENT) {
+				
+				pinned = representations.lookup(response.getRequest().getUriPath(), ifMatch.getRawValue());
+				
+				if (pinned!=null) {
+					
+					// serve the version the client started with
+					msg.setOption(new Option(ifMatch.getRawValue(), OptionNumberRegistry.ETAG));
+					if (source!=null) {
+						source.close();
+						source = null;
+					}
+					
+				} else if (!Arrays.equals(ifMatch.getRawValue(), getETag(msg))) {
+					
+					LOG.info(String.format("Rejecting block request for changed representation: %s | %s", msg.sequenceKey(), ifMatch));
+					if (source!=null) {
+						source.close();
+					}
+					handlePreconditionError(response);
+					return;
 				}
-				sendNUM = buddyBlock.getNUM();
 			}
 		}
 		
 		// check if transfer needs to be split up
-		if (msg.payloadSize() > BlockOption.decodeSZX(sendSZX)) {
+		if (msg.payloadSize() > BlockOption.decodeSZX(sendSZX) || source!=null || pinned!=null) {
 			// split message up using block1 for requests and block2 for responses
 			
-			Message msgBlock = getBlock(msg, sendNUM, sendSZX);
+			// sources are read block by block and never copied as a whole
+			Representation body = pinned!=null ? pinned : source!=null ? new Representation(source) : new Representation(msg.getPayload());
 			
-			if (msgBlock!=null) {
+			Message msgBlock = getBlock(msg, body, sendNUM, sendSZX);
+			
+			if (msgBlock!=null && source!=null && sendNUM==0 && !((BlockOption) msgBlock.getFirstOption(msg instanceof Request ? OptionNumberRegistry.BLOCK1 : OptionNumberRegistry.BLOCK2)).getM()) {
+				
+				// small body from a source fits into a single message
+				msg.setPayload(msgBlock.getPayload());
+				body.release();
+				sendMessageOverLowerLayer(msg);
+				
+			} else if (msgBlock!=null) {
 				
 				BlockOption block1 = (BlockOption) msgBlock.getFirstOption(OptionNumberRegistry.BLOCK1);
 				BlockOption block2 = (BlockOption) msgBlock.getFirstOption(OptionNumberRegistry.BLOCK2);
@@ -166,21 +270,56 @@ public class TransferLayer extends UpperLayer {
 					msg.setOption(block2);
 					
 					TransferContext transfer = new TransferContext(msg);
-					outgoing.put(msg.sequenceKey(), transfer);
+					
+					if (source!=null || pinned!=null) {
+						// only the requested blocks are read from the source or pinned version
+						transfer.representation = body;
+						msg.setPayload((byte[]) null);
+					} else if (msg instanceof Response) {
+						// share the body with all clients downloading the same version
+						transfer.representation = representations.acquire(transfer.uriPath, msg);
+						msg.setPayload((byte[]) null);
+					} else {
+						// keep payload of the original request for the application
+						transfer.representation = new Representation(msg.getPayload());
+					}
+					
+					Exchange exchange = getExchange(msg, true, true);
+					freeOutgoing(exchange);
+					exchange.outgoing = transfer;
+					budget.track(exchange, transfer);
+					transfer.lastSent = System.currentTimeMillis();
+
+					// only the server rejects downloads, clients always finish their uploads
+					if (msg instanceof Response && !budget.admit(transfer)) {
+						handleBudgetError((Response) msg);
+						return;
+					}
 					
 					LOG.fine(String.format("Caching blockwise transfer for NUM %d: %s", sendNUM, msg.sequenceKey()));
 				} else {
 					// must be block2 by client
 					LOG.finer(String.format("Answering block request without caching: %s | %s", msg.sequenceKey(), block2));
+					body.release();
 				}
-				
+
 				// send block and wait for reply
-				sendMessageOverLowerLayer(msgBlock);
-				
+				try {
+					sendMessageOverLowerLayer(msgBlock);
+				} catch (IOException e) {
+					blockSizes.reportFailure(msg.getPeerAddress(), sendSZX, e);
+					throw e;
+				}
+
 			} else {
 				// must be block2 by client
 				LOG.info(String.format("Rejecting initial out-of-scope request: %s | NUM: %d, SZX: %d (%d bytes), M: n/a, %d bytes available", msg.sequenceKey(), sendNUM, sendSZX, BlockOption.decodeSZX(sendSZX), msg.payloadSize()));
-				handleOutOfScopeError(msg.newReply(true));
+				
+				body.release();
+				
+				// reply to the request, so that its transaction completes
+				Request request = msg instanceof Response ? ((Response)msg).getRequest() : null;
+				handleOutOfScopeError(request!=null ? request.newReply(true) : msg.newReply(true));
 			}
 			
 		} else {
@@ -227,13 +366,16 @@ public class TransferLayer extends UpperLayer {
 			
 			LOG.finer(String.format("Received demand for next block: %s | %s", msg.sequenceKey(), blockOut));
 			
-			TransferContext transfer = outgoing.get(msg.sequenceKey());
+			Exchange exchange = getExchange(msg, false, false);
+			TransferContext transfer = exchange!=null ? exchange.outgoing : null;
 				
 			if (transfer!=null) {
 				
-				if (msg instanceof Request && !msg.getUriPath().equals(transfer.uriPath)) {
+				Option ifMatch = msg.getFirstOption(OptionNumberRegistry.IF_MATCH);
+				
+				if (msg instanceof Request && (!msg.getUriPath().equals(transfer.uriPath) || ifMatch!=null && !Arrays.equals(ifMatch.getRawValue(), getETag(transfer.cache)))) {
 				
-					outgoing.remove(msg.sequenceKey());
+					freeOutgoing(exchange);
 					LOG.fine(String.format("Freed blockwise transfer by client token reuse: %s", msg.sequenceKey()));
 					
 				} else {
@@ -243,38 +385,80 @@ public class TransferLayer extends UpperLayer {
 						transfer.cache.setMID(msg.getMID());
 					}
 			
+					budget.touch(transfer);
+					
+					int offset = blockOut.getNUM() * blockOut.getSize();
+					
+					if (msg instanceof Response && msg.getCode()==CodeRegistry.RESP_REQUEST_ENTITY_TOO_LARGE) {
+						
+						if (blockOut.getSZX() >= transfer.current.getSZX()) {
+							
+							freeOutgoing(exchange);
+							LOG.info(String.format("Freed blockwise upload rejected by server: %s", msg.sequenceKey()));
+							
+							// restore original request with registered handlers
+							((Response)msg).setRequest((Request)transfer.cache);
+							deliverMessage(msg);
+							return;
+						}
+						
+						// the server demands smaller blocks, start over with its size
+						LOG.info(String.format("Restarting blockwise upload with smaller blocks: %s | %s", msg.sequenceKey(), blockOut));
+						offset = 0;
+					}
+					
+					// continue at the same offset; the side sending the requests picks the size
+					int szx = blockOut.getSZX();
+					
+					// only the client measures round-trip times, the server would include its think time
+					if (defaultSZX >= 0) {
+						
+						if (msg instanceof Response) {
+							blockSizes.reportBlock(msg.getPeerAddress(), msg.getRetransmissioned() > 0);
+							
+							if (szx < transfer.current.getSZX()) {
+								blockSizes.reportLimit(msg.getPeerAddress(), szx);
+							}
+							szx = BlockSizes.align(offset, Math.min(szx, blockSizes.get(msg.getPeerAddress())));
+						}
+					}
+
 					// use cached representation
-					Message next = getBlock(transfer.cache, blockOut.getNUM(), blockOut.getSZX());
+					Message next = getBlock(transfer.cache, transfer.representation, offset / BlockOption.decodeSZX(szx), szx);
 						
 					if (next!=null) {
-							
+						
+						BlockOption respBlock = (BlockOption) next.getFirstOption(blockOut.getOptionNumber());
+						
 						try {
-							LOG.finer(String.format("Sending next block: %s | %s", next.sequenceKey(), blockOut));
+							LOG.finer(String.format("Sending next block: %s | %s", next.sequenceKey(), respBlock));
 							sendMessageOverLowerLayer(next);
 						} catch (IOException e) {
+							blockSizes.reportFailure(msg.getPeerAddress(), szx, e);
 							LOG.severe(String.format("Failed to send block response: %s", e.getMessage()));
 						}
-							
-						BlockOption respBlock = (BlockOption) next.getFirstOption(blockOut.getOptionNumber());
-							
+						
+						transfer.current = respBlock;
+						transfer.lastSent = System.currentTimeMillis();
+
 						// remove transfer context if completed
 						if (!respBlock.getM() && msg instanceof Request) {
-							outgoing.remove(msg.sequenceKey());
+							freeOutgoing(exchange);
 							LOG.fine(String.format("Freed blockwise download by completion: %s", next.sequenceKey()));
 						}
 						return;
 							
 					} else if (msg instanceof Response && !blockOut.getM()) {
 						
-						outgoing.remove(msg.sequenceKey());
+						freeOutgoing(exchange);
 						LOG.fine(String.format("Freed blockwise upload by completion: %s", msg.sequenceKey()));
 						
 						// restore original request with registered handlers
 						((Response)msg).setRequest((Request)transfer.cache);
 						
 					} else {
-						LOG.warning(String.format("Rejecting out-of-scope demand for cached transfer (freed): %s | %s, %d bytes available", msg.sequenceKey(), blockOut, transfer.cache.payloadSize()));
-						outgoing.remove(msg.sequenceKey());
+						LOG.warning(String.format("Rejecting out-of-scope demand for cached transfer (freed): %s | %s, %d bytes available", msg.sequenceKey(), blockOut, transfer.representation.size()));
+						freeOutgoing(exchange);
 						handleOutOfScopeError(msg.newReply(true));
 						return;
 					}
@@ -282,23 +466,46 @@ public class TransferLayer extends UpperLayer {
 			}
 		} else if (msg instanceof Response) {
 			// check for cached transfers
-			TransferContext transfer = outgoing.get(msg.sequenceKey());
+			Exchange exchange = getExchange(msg, false, false);
+			
+			// the server no longer has the version of the first block
+			TransferContext incoming = exchange!=null ? exchange.incoming : null;
+			if (incoming!=null && msg.getCode()==CodeRegistry.RESP_PRECONDITION_FAILED && restartDownload(exchange, incoming)) {
+				return;
+			}
+			
+			// a windowed download requested blocks beyond the end of the body
+			if (incoming!=null && incoming.window!=null && msg.getCode()==CodeRegistry.RESP_BAD_REQUEST) {
+				if (handleWindowEnd(msg, exchange, incoming)) {
+					return;
+				}
+			}
+			
+			// the server is overloaded and asks to come back after Max-Age
+			if (incoming!=null && incoming.window!=null && msg.getCode()==CodeRegistry.RESP_SERVICE_UNAVAILABLE) {
+				if (handleWindowBusy(msg, exchange, incoming)) {
+					return;
+				}
+			}
+			
+			TransferContext transfer = exchange!=null ? exchange.outgoing : null;
 			if (transfer!=null) {
 
 				// restore original request with registered handlers
 				((Response)msg).setRequest((Request)transfer.cache);
 				
-				outgoing.remove(msg.sequenceKey());
+				freeOutgoing(exchange);
 				LOG.fine(String.format("Freed outgoing transfer by client abort: %s", msg.sequenceKey()));
 			}
 			
-			transfer = incoming.get(msg.sequenceKey());
+			transfer = exchange!=null ? exchange.incoming : null;
 			if (transfer!=null) {
 
 				// restore original request with registered handlers
-				((Response)msg).setRequest((Request)transfer.cache);
+				((Response)msg).setRequest(((Response)transfer.cache).getRequest());
 				
-				incoming.remove(msg.sequenceKey());
+				exchange.incoming = null;
+				transfer.dispose();
 				LOG.fine(String.format("Freed incoming transfer by client abort: %s", msg.sequenceKey()));
 			}
 		}
@@ -309,27 +516,57 @@ public class TransferLayer extends UpperLayer {
 	
 	private void handleIncomingPayload(Message msg, BlockOption blockOpt) {
 		
-		TransferContext transfer = incoming.get(msg.sequenceKey());
+		Exchange exchange = getExchange(msg, false, false);
+		TransferContext transfer = exchange!=null ? exchange.incoming : null;
 		
-		if (blockOpt.getNUM()>0 && transfer != null) {
+		if (blockOpt.getNUM()>0 && transfer != null && msg instanceof Response && !checkVersion(msg, exchange, transfer)) {
+			return;
+		}
+		
+		if (blockOpt.getNUM()>0 && transfer != null && transfer.window != null) {
+			
+			handleWindowedBlock(msg, blockOpt, exchange, transfer);
+			return;
+			
+		} else if (blockOpt.getNUM()>0 && transfer != null) {
 			
 			// compare block offsets
 			if (blockOpt.getNUM()*blockOpt.getSize()==(transfer.current.getNUM()+1)*transfer.current.getSize() ) {
-								
-				// append received payload to first response and update message ID
-				transfer.cache.appendPayload(msg.getPayload());
+				
+				if (msg instanceof Response) {
+					blockSizes.reportBlock(msg.getPeerAddress(), msg.getRetransmissioned() > 0);
+				}
+
+				// collect received payload without copying previous blocks
+				if (transfer.handler!=null) {
+					transfer.handler.performChunk((Request) transfer.cache, msg.getPayload(), !blockOpt.getM());
+				} else {
+					try {
+						appendBlock(transfer, msg.getPayload());
+					} catch (IOException e) {
+						abortIncoming(msg, exchange, transfer, CodeRegistry.RESP_INTERNAL_SERVER_ERROR, e.getMessage());
+						return;
+					}
+				}
+
+				// update message ID of first message
 				
 				// update info
 				transfer.cache.setMID(msg.getMID());
 				
 				LOG.fine(String.format("Received next block:  %s | %s", msg.sequenceKey(), blockOpt)); // extra space to match "Demanding next block" indent
 				
+				budget.touch(transfer);
+				if (!admitIncoming(msg, transfer)) {
+					return;
+				}
+				
 			} else {
 				LOG.info(String.format("Dropping wrong block: %s | %s", msg.sequenceKey(), blockOpt));
 			}
 		
 			
-		} else if (blockOpt.getNUM()==0 && msg.payloadSize()>0) {
+		} else if ((blockOpt.getNUM()==0 || transfer==null && isResumed(msg, blockOpt)) && msg.payloadSize()>0) {
 			
 			// configure messages marked by Cf for blockwise transfer
 			if (msg.payloadSize() > blockOpt.getSize()) {
@@ -338,12 +575,57 @@ public class TransferLayer extends UpperLayer {
 				msg.setPayload(Arrays.copyOf(msg.getPayload(), newNUM));
 			}
 			
+			// restarted transfer
+			int restarts = 0;
+			if (transfer!=null) {
+				if (transfer.restarting) {
+					// restore original request with registered handlers
+					((Response)msg).setRequest(((Response)transfer.cache).getRequest());
+					restarts = transfer.restarts;
+				}
+				transfer.dispose();
+			}
+			
 			// create new transfer context
 			transfer = new TransferContext(msg);
-			incoming.put(msg.sequenceKey(), transfer);
+			transfer.offset = blockOpt.getNUM() * blockOpt.getSize();
+			transfer.restarts = restarts;
+			exchange = getExchange(msg, false, true);
+			exchange.incoming = transfer;
+			budget.track(exchange, transfer);
+			
+			// stream bodies to resources and clients that opted in
+			Request request = msg instanceof Response ? ((Response)msg).getRequest() : null;
+			if (msg instanceof Request) {
+				transfer.handler = chunkHandlers.get(msg.getUriPath());
+			} else if (request!=null && request.responseStreamingEnabled()) {
+				transfer.stream = new ResponseStream(request, (Response) msg, Properties.std.getInt("TRANSFER_STREAM_BUFFER"), streamExecutor, abortStream(exchange, transfer));
+			}
+			
+			if (transfer.handler!=null) {
+				transfer.handler.performChunk((Request) msg, msg.getPayload(), !blockOpt.getM());
+			} else {
+				if (transfer.stream==null) {
+					transfer.body = new ChunkedBuffer();
+				}
+				try {
+					appendBlock(transfer, msg.getPayload());
+				} catch (IOException e) {
+					abortIncoming(msg, exchange, transfer, CodeRegistry.RESP_INTERNAL_SERVER_ERROR, e.getMessage());
+					return;
+				}
+			}
+
+			// the body is kept by the transfer context
+			msg.setPayload((byte[]) null);
 			
 			LOG.fine(String.format("Incoming blockwise transfer: %s | %s", msg.sequenceKey(), blockOpt));
 			
+			budget.touch(transfer);
+			if (!admitIncoming(msg, transfer)) {
+				return;
+			}
+			
 		} else {
 			
 			LOG.info(String.format("Rejecting out-of-order block: %s | %s", msg.sequenceKey(), blockOpt));
@@ -355,18 +637,40 @@ public class TransferLayer extends UpperLayer {
 			Message reply = null;
 			
 			int demandSZX = blockOpt.getSZX();
-			int demandNUM = blockOpt.getNUM();
-
-			// block size negotiation
-			if (demandSZX>defaultSZX) {
-				demandNUM = demandSZX/defaultSZX * demandNUM;
-				demandSZX = defaultSZX; 
-			}
 			
-			if (msg instanceof Response) {
+			// block size negotiation, sizes can only change at a common block boundary
+			int offset = (blockOpt.getNUM()+1) * blockOpt.getSize();
+			if (defaultSZX >= 0) {
+				
+				demandSZX = blockSizes.get(msg.getPeerAddress());
+				
+				// a server may only ask for smaller blocks
+				if (msg instanceof Request) {
+					demandSZX = Math.min(demandSZX, blockOpt.getSZX());
+				}
+				demandSZX = BlockSizes.align(offset, demandSZX);
+			}
+			int demandNUM = offset / BlockOption.decodeSZX(demandSZX) - 1;
+
+			if (msg instanceof Response && windowSize > 1 && !msg.isNonConfirmable()) {
+				
+				// keep several block requests in flight from now on, never above the size of the server
+				demandSZX = BlockSizes.align(offset, Math.min(demandSZX, blockOpt.getSZX()));
+				int first = offset / BlockOption.decodeSZX(demandSZX);
+				transfer.window = new BlockWindow(demandSZX, first, offset - transfer.offset, windowSize, Properties.std.getInt("RESPONSE_TIMEOUT"));
+				
+				LOG.fine(String.format("Windowed blockwise download: %s | window %d", msg.sequenceKey(), windowSize));
+				
+				if (transfer.stream==null || !transfer.stream.pause(resumeWindow(exchange, transfer))) {
+					demandWindow(exchange, transfer);
+				}
+				return;
+
+			} else if (msg instanceof Response) {
 
 				reply = new Request(CodeRegistry.METHOD_GET, !msg.isNonConfirmable()); // msg could be ACK or CON
 				reply.setURI("coap://" + msg.getPeerAddress().toString() + transfer.uriPath);
+				reply.setOption(getIfMatch(transfer));
 				
 				// get next block
 				++demandNUM;
@@ -395,30 +699,428 @@ public class TransferLayer extends UpperLayer {
 			reply.setOption(msg.getFirstOption(OptionNumberRegistry.TOKEN));
 			reply.setOption(next);
 
-			try {
-				
-				LOG.fine(String.format("Demanding next block: %s | %s", reply.sequenceKey(), next));
-				
-				sendMessageOverLowerLayer(reply);
-				
-			} catch (IOException e) {
-				LOG.severe(String.format("Failed to request block: %s", e.getMessage()));
-			}
-
 			// update incoming transfer
 			transfer.current = blockOpt;
 			
+			// a slow stream consumer holds back the demand
+			if (transfer.stream==null || !transfer.stream.pause(resumeDemand(exchange, transfer, reply))) {
+				sendDemand(reply, transfer);
+			}
+
 		} else {
 			
 			// set final block option
 			transfer.cache.setOption(blockOpt);
 			
+			// streamed bodies were consumed by the handler
+			if (transfer.body!=null) {
+				// the message owns the body from now on
+				transfer.cache.setPayload(transfer.body);
+				transfer.body = null;
+			}
+			
 			LOG.fine(String.format("Finished blockwise transfer: %s", msg.sequenceKey()));
-			incoming.remove(msg.sequenceKey());
+			exchange.incoming = null;
+			budget.untrack(transfer);
+			
+			deliverTransfer(transfer);
+		}
+	}
+	
+	private void sendDemand(Message reply, TransferContext transfer) {
+		
+		try {
+			
+			LOG.fine(String.format("Demanding next block: %s | %s", reply.sequenceKey(), reply.getFirstOption(transfer.current.getOptionNumber())));
+			
+			sendMessageOverLowerLayer(reply);
 			
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to request block: %s", e.getMessage()));
+		}
+		
+		transfer.lastSent = System.currentTimeMillis();
+	}
+	
+	/*
+	 * Returns the demand for the next block held back by a paused stream.
+	 */
+	private Runnable resumeDemand(final Exchange exchange, final TransferContext transfer, final Message reply) {
+		return new Runnable() {
+			public void run() {
+				if (exchange.incoming==transfer) {
+					sendDemand(reply, transfer);
+				}
+			}
+		};
+	}
+	
+	/*
+	 * Returns the abort of a download whose stream consumer failed.
+	 */
+	private Runnable abortStream(final Exchange exchange, final TransferContext transfer) {
+		return new Runnable() {
+			public void run() {
+				abortIncoming(transfer.cache, exchange, transfer, CodeRegistry.RESP_INTERNAL_SERVER_ERROR, "Response stream consumer failed");
+			}
+		};
+	}
+	
+	private void appendBlock(TransferContext transfer, byte[] block) throws IOException {
+		if (transfer.stream!=null) {
+			transfer.stream.offer(block);
+		} else {
+			transfer.body.append(block);
+		}
+	}
+	
+	/*
+	 * Delivers the response of a completed download, after the last block of
+	 * a streamed body was consumed.
+	 */
+	private void deliverTransfer(final TransferContext transfer) {
+		if (transfer.stream!=null) {
+			transfer.stream.finish(new Runnable() {
+				public void run() {
+					deliverMessage(transfer.cache);
+				}
+			});
+		} else {
 			deliverMessage(transfer.cache);
 		}
 	}
+
+	private void handleWindowedBlock(Message msg, BlockOption blockOpt, Exchange exchange, TransferContext transfer) {
+		
+		BlockWindow window = transfer.window;
+		boolean complete;
+		
+		synchronized (window) {
+			
+			List<byte[]> blocks = blockOpt.getSZX()==window.szx ? window.received(blockOpt.getNUM(), msg.getMID(), msg.getPayload(), blockOpt.getM()) : null;
+			
+			if (blocks==null) {
+				LOG.finer(String.format("Dropping unexpected block: %s | %s", msg.sequenceKey(), blockOpt));
+				return;
+			}
+			
+			try {
+				for (byte[] block : blocks) {
+					appendBlock(transfer, block);
+				}
+			} catch (IOException e) {
+				abortIncoming(msg, exchange, transfer, CodeRegistry.RESP_INTERNAL_SERVER_ERROR, e.getMessage());
+				return;
+			}
+						
+			complete = window.isComplete();
+		}
+		
+		blockSizes.reportBlock(msg.getPeerAddress(), msg.getRetransmissioned() > 0);
+
+		LOG.finer(String.format("Received windowed block: %s | %s", msg.sequenceKey(), blockOpt));
+		
+		budget.touch(transfer);
+		
+		if (complete) {
+			finishWindow(exchange, transfer);
+		} else if (transfer.stream==null || !transfer.stream.pause(resumeWindow(exchange, transfer))) {
+			demandWindow(exchange, transfer);
+		}
+	}
+	
+	/*
+	 * Requests blocks until the window is full.
+	 */
+	private void demandWindow(Exchange exchange, TransferContext transfer) {
+		
+		List<Integer> demand;
+		synchronized (transfer.window) {
+			demand = transfer.window.fill();
+		}
+		for (int num : demand) {
+			requestBlock(exchange, transfer, num);
+		}
+	}
+	
+	/*
+	 * Returns the demand for further blocks held back by a paused stream.
+	 */
+	private Runnable resumeWindow(final Exchange exchange, final TransferContext transfer) {
+		return new Runnable() {
+			public void run() {
+				if (exchange.incoming==transfer) {
+					demandWindow(exchange, transfer);
+				}
+			}
+		};
+	}
+
+	/*
+	 * Handles the 4.00 reply to a block request beyond the end of the body.
+	 */
+	private boolean handleWindowEnd(Message msg, Exchange exchange, TransferContext transfer) {
+		
+		boolean complete;
+		
+		if (exchange.disposed || transfer.restarting) {
+			// reply to a canceled download or a request for the previous version
+			return true;
+		}
+		
+		synchronized (transfer.window) {
+			if (!transfer.window.outOfScope(msg.getMID())) {
+				return false;
+			}
+			complete = transfer.window.isComplete();
+		}
+		
+		LOG.finer(String.format("Block request beyond end of body: %s", msg.sequenceKey()));
+		
+		if (complete) {
+			finishWindow(exchange, transfer);
+		}
+		return true;
+	}
+	
+	/*
+	 * Handles the 5.03 reply to a block request. The window shrinks to one
+	 * block and further blocks are requested after the Max-Age of the reply.
+	 */
+	private boolean handleWindowBusy(Message msg, final Exchange exchange, final TransferContext transfer) {
+		
+		long holdOff = msg.getMaxAge() * 1000L;
+		boolean abort;
+		
+		if (exchange.disposed) {
+			return true;
+		}
+		
+		synchronized (transfer.window) {
+			if (exchange.incoming!=transfer || !transfer.window.busy(msg.getMID(), holdOff)) {
+				return false;
+			}
+			abort = transfer.window.getRetries() > Properties.std.getInt("MAX_RETRANSMIT");
+		}
+		
+		if (abort) {
+			abortIncoming(msg, exchange, transfer, CodeRegistry.RESP_SERVICE_UNAVAILABLE, "Server busy");
+			return true;
+		}
+		
+		LOG.info(String.format("Server busy, holding back block requests for %d ms: %s", holdOff, msg.sequenceKey()));
+		
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				if (exchange.incoming==transfer) {
+					demandWindow(exchange, transfer);
+				}
+			}
+		}, holdOff);
+		
+		return true;
+	}
+	
+	private void handleBlockTimeout(Exchange exchange, TransferContext transfer, int num) {
+		
+		BlockWindow window = transfer.window;
+		int retries;
+		
+		if (exchange.disposed) {
+			return;
+		}
+		
+		synchronized (window) {
+			
+			if (exchange.incoming!=transfer || transfer.restarting || !window.timedOut(num)) {
+				return;
+			}
+			
+			retries = window.getRetries();
+		}
+		
+		if (retries > Properties.std.getInt("MAX_RETRANSMIT")) {
+			abortIncoming(transfer.cache, exchange, transfer, CodeRegistry.RESP_GATEWAY_TIMEOUT, String.format("%d lost blocks", retries));
+			return;
+		}
+		
+		LOG.info(String.format("Requesting lost block again: %s | NUM %d", transfer.cache.sequenceKey(), num));
+		requestBlock(exchange, transfer, num);
+	}
+	
+	private void requestBlock(final Exchange exchange, final TransferContext transfer, final int num) {
+		
+		// the token was released with the exchange
+		if (exchange.disposed) {
+			return;
+		}
+		
+		// each block has its own transaction and is retransmitted on its own
+		Request request = new Request(CodeRegistry.METHOD_GET, true) {
+			@Override
+			public void handleTimeout() {
+				handleBlockTimeout(exchange, transfer, num);
+			}
+		};
+		
+		request.setURI("coap://" + transfer.cache.getPeerAddress().toString() + transfer.uriPath);
+		request.setOption(transfer.cache.getFirstOption(OptionNumberRegistry.TOKEN));
+		request.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, num, transfer.window.szx, false));
+		request.setOption(getIfMatch(transfer));
+		request.setExchange(exchange);
+		
+		// assign MID here to map error replies to the block
+		request.setMID(TransactionLayer.nextMessageID());
+		synchronized (transfer.window) {
+			transfer.window.sent(num, request.getMID());
+		}
+		
+		try {
+			LOG.finer(String.format("Demanding windowed block: %s | NUM %d", request.sequenceKey(), num));
+			sendMessageOverLowerLayer(request);
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to request block: %s", e.getMessage()));
+		}
+	}
+	
+	private void finishWindow(Exchange exchange, TransferContext transfer) {
+		
+		synchronized (transfer.window) {
+			
+			// only deliver once
+			if (exchange.incoming!=transfer) {
+				return;
+			}
+			exchange.incoming = null;
+		}
+		
+		budget.untrack(transfer);
+		
+		BlockWindow window = transfer.window;
+		
+		synchronized (this) {
+			++numWindowed;
+			windowedBytes += window.getBytes();
+			windowedMillis += window.getElapsed();
+		}
+		
+		LOG.fine(String.format("Finished windowed download: %s | %d bytes in %d ms (%d bytes/s)", transfer.cache.sequenceKey(), window.getBytes(), window.getElapsed(), window.getGoodput()));
+		
+		transfer.cache.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, window.getLast(), window.szx, false));
+		
+		if (transfer.body!=null) {
+			// the message owns the body from now on
+			transfer.cache.setPayload(transfer.body);
+			transfer.body = null;
+		}
+		
+		deliverTransfer(transfer);
+	}
+	
+	/*
+	 * Checks that a block has the ETag of the first block. If the
+	 * representation changed, the download starts over and the block is
+	 * dropped, as are blocks arriving while waiting for the new first block.
+	 */
+	private boolean checkVersion(Message msg, Exchange exchange, TransferContext transfer) {
+		
+		if (transfer.restarting) {
+			LOG.finer(String.format("Dropping block of previous version: %s", msg.sequenceKey()));
+			return false;
+		}
+		
+		if (Arrays.equals(getETag(msg), getETag(transfer.cache))) {
+			return true;
+		}
+		
+		LOG.info(String.format("Representation changed during blockwise download: %s | %s", msg.sequenceKey(), msg.getFirstOption(OptionNumberRegistry.ETAG)));
+		
+		if (!restartDownload(exchange, transfer)) {
+			
+			abortIncoming(msg, exchange, transfer, CodeRegistry.RESP_PRECONDITION_FAILED, String.format("%d changes of the representation", transfer.restarts));
+		}
+		return false;
+	}
+	
+	/*
+	 * Requests the first block again after the representation changed on the
+	 * server. Returns false for streamed bodies and once MAX_RETRANSMIT
+	 * restarts are exhausted.
+	 */
+	private boolean restartDownload(Exchange exchange, TransferContext transfer) {
+		
+		synchronized (transfer) {
+			
+			if (transfer.restarting) {
+				return true;
+			}
+			// blocks already handed to the application cannot be taken back
+			if (transfer.stream!=null || transfer.restarts >= Properties.std.getInt("MAX_RETRANSMIT")) {
+				return false;
+			}
+			transfer.restarting = true;
+			++transfer.restarts;
+		}
+		
+		Request request = new Request(CodeRegistry.METHOD_GET, true);
+		request.setURI("coap://" + transfer.cache.getPeerAddress().toString() + transfer.uriPath);
+		
+		// the resource is asked again, so it needs the original query
+		Request original = ((Response)transfer.cache).getRequest();
+		if (original!=null) {
+			request.setOptions(original.getOptions(OptionNumberRegistry.URI_QUERY));
+		}
+		
+		request.setOption(transfer.cache.getFirstOption(OptionNumberRegistry.TOKEN));
+		request.setOption(new BlockOption(OptionNumberRegistry.BLOCK2, 0, transfer.current.getSZX(), false));
+		request.setExchange(exchange);
+		
+		try {
+			LOG.info(String.format("Restarting blockwise download: %s", request.sequenceKey()));
+			sendMessageOverLowerLayer(request);
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to request block: %s", e.getMessage()));
+		}
+		return true;
+	}
+	
+	/*
+	 * Aborts an incoming transfer that cannot continue. Uploads are answered
+	 * with the error code, downloads complete the original request with it
+	 * right away, which also releases the exchange in the TokenLayer.
+	 */
+	private void abortIncoming(Message msg, Exchange exchange, TransferContext transfer, int code, String reason) {
+		
+		LOG.warning(String.format("Aborting blockwise transfer: %s | %s", msg.sequenceKey(), reason));
+		
+		if (exchange.incoming==transfer) {
+			exchange.incoming = null;
+		}
+		transfer.dispose();
+		
+		if (msg instanceof Request) {
+			
+			Message resp = msg.newReply(true);
+			resp.setCode(code);
+			resp.setPayload("Transfer aborted");
+			
+			try {
+				sendMessageOverLowerLayer(resp);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+			}
+			
+		} else if (!exchange.disposed) {
+			
+			// the request was not canceled or timed out in the meantime
+			Response resp = newErrorResponse((Response) transfer.cache, code);
+			resp.setPayload("Transfer aborted");
+			resp.setExchange(exchange);
+			
+			deliverMessage(resp);
+		}
+	}
 	
 	private void handleOutOfScopeError(Message resp) {
 		
@@ -446,15 +1148,131 @@ public class TransferLayer extends UpperLayer {
 	}
 	
 	
+	/*
+	 * Checks the budget for a grown incoming transfer. Uploads that do not
+	 * fit are answered with 4.13, downloads by the client always continue.
+	 */
+	private boolean admitIncoming(Message msg, TransferContext transfer) {
+		
+		if (msg instanceof Request && !budget.admit(transfer)) {
+			
+			Message resp = msg.newReply(true);
+			resp.setCode(CodeRegistry.RESP_REQUEST_ENTITY_TOO_LARGE);
+			resp.setPayload("Transfer budget exceeded");
+			
+			try {
+				sendMessageOverLowerLayer(resp);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+			}
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private void handleBudgetError(Response msg) {
+		
+		Response resp = newErrorResponse(msg, CodeRegistry.RESP_SERVICE_UNAVAILABLE);
+		resp.setMaxAge(Math.max(1, Properties.std.getInt("TRANSFER_IDLE_TIMEOUT")/1000));
+		resp.setPayload("Transfer budget exceeded");
+		
+		try {
+			sendMessageOverLowerLayer(resp);
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+		}
+	}
+	
+	private void handlePreconditionError(Response msg) {
+		
+		Response resp = newErrorResponse(msg, CodeRegistry.RESP_PRECONDITION_FAILED);
+		resp.setPayload("Representation changed");
+		
+		try {
+			sendMessageOverLowerLayer(resp);
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to send error message: %s", e.getMessage()));
+		}
+	}
+	
+	/*
+	 * Replaces a response, so that its options do not leak into the error.
+	 */
+	private static Response newErrorResponse(Response msg, int code) {
+		
+		Response resp = new Response(code);
+		resp.setType(msg.getType());
+		resp.setMID(msg.getMID());
+		resp.setPeerAddress(msg.getPeerAddress());
+		resp.setRequest(msg.getRequest());
+		resp.setOption(msg.getFirstOption(OptionNumberRegistry.TOKEN));
+		
+		return resp;
+	}
+	
+	/*
+	 * Returns the exchange attached by the MatchingLayer or looks it up for
+	 * outgoing messages. The exchange is a client one if this endpoint sent
+	 * the request.
+	 */
+	private Exchange getExchange(Message msg, boolean outgoing, boolean create) {
+		
+		Exchange exchange = msg.getExchange();
+		
+		if (exchange==null) {
+			boolean client = msg instanceof Request == outgoing;
+			exchange = create ? exchanges.getOrCreate(msg.sequenceKey(), client) : exchanges.get(msg.sequenceKey(), client);
+			msg.setExchange(exchange);
+		}
+		
+		return exchange;
+	}
+	
+	private void freeOutgoing(Exchange exchange) {
+		if (exchange.outgoing!=null) {
+			exchange.outgoing.dispose();
+			exchange.outgoing = null;
+		}
+	}
+	
 	// Static Methods //////////////////////////////////////////////////////////
+	
+	/*
+	 * Checks if a block answers a request of the application that resumes a
+	 * download from this block on, presenting the ETag in an If-Match option.
+	 */
+	private static boolean isResumed(Message msg, BlockOption blockOpt) {
+		
+		Request request = msg instanceof Response ? ((Response)msg).getRequest() : null;
+		BlockOption requested = request!=null ? (BlockOption) request.getFirstOption(OptionNumberRegistry.BLOCK2) : null;
+		
+		return requested!=null && requested.getNUM()==blockOpt.getNUM() && request.hasOption(OptionNumberRegistry.IF_MATCH);
+	}
+	
+	private static byte[] getETag(Message msg) {
+		Option etag = msg.getFirstOption(OptionNumberRegistry.ETAG);
+		return etag!=null ? etag.getRawValue() : null;
+	}
+	
+	/*
+	 * Returns an If-Match option with the ETag of the first block, so that the
+	 * server rejects further block requests once the representation changed.
+	 */
+	private static Option getIfMatch(TransferContext transfer) {
+		byte[] etag = getETag(transfer.cache);
+		return etag!=null ? new Option(etag, OptionNumberRegistry.IF_MATCH) : null;
+	}
 
-	private static Message getBlock(Message msg, int num, int szx) {
+	private static Message getBlock(Message msg, Representation body, int num, int szx) {
 		
 		int blockSize = 1 << (szx + 4);
 		int payloadOffset = num * blockSize;
-		int payloadLeft = msg.payloadSize() - payloadOffset;
 		
-		if (payloadLeft > 0) {
+		// one byte more tells if further blocks exist, also for sources of unknown size
+		ByteBuffer payload = body.slice(payloadOffset, blockSize + 1);
+		
+		if (payload.hasRemaining()) {
 			Message block = null;
 			if (msg instanceof Request) {
 				block = new Request(msg.getCode(), msg.isConfirmable());
@@ -477,20 +1295,16 @@ public class TransferLayer extends UpperLayer {
 			}
 			
 			// calculate 'more' bit 
-			boolean m = blockSize < payloadLeft;
+			boolean m = blockSize < payload.remaining();
 			
 			// limit block size to size of payload left
-			if (!m) {
-				blockSize = payloadLeft;
+			if (m) {
+				payload.limit(payload.position() + blockSize);
 			}
 			
-			// copy payload block
-			
-			byte[] blockPayload = new byte[blockSize];
-			System.arraycopy(msg.getPayload(), payloadOffset, blockPayload, 0, blockSize);
-			
-			block.setPayload(blockPayload);
-			
+			// reference payload block without copying
+			block.setPayload(payload);
+
 			Option blockOpt = null;
 			if (msg instanceof Request) {
 				blockOpt = new BlockOption(OptionNumberRegistry.BLOCK1, num, szx, m);
@@ -512,11 +1326,22 @@ public class TransferLayer extends UpperLayer {
 		stats.append("Default block size: ");
 		stats.append(BlockOption.decodeSZX(defaultSZX));
 		stats.append('\n');
-		stats.append("Outgoing cache size: ");
-		stats.append(outgoing.size());
+		stats.append("Exchanges: ");
+		stats.append(exchanges.size());
+		stats.append('\n');
+		stats.append(representations.getStats());
+		stats.append('\n');
+		stats.append(budget.getStats());
 		stats.append('\n');
-		stats.append("Incoming cache size: ");
-		stats.append(incoming.size());
+		stats.append(blockSizes.getStats());
+		stats.append('\n');
+		stats.append("Windowed downloads: ");
+		stats.append(numWindowed);
+		synchronized (this) {
+			if (windowedMillis > 0) {
+				stats.append(String.format(" (%d bytes/s goodput)", windowedBytes * 1000 / windowedMillis));
+			}
+		}
 		stats.append('\n');
 		stats.append("Messages sent:     ");
 		stats.append(numMessagesSent);
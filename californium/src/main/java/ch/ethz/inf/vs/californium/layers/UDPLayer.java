@@ -32,7 +32,10 @@ package ch.ethz.inf.vs.californium.layers;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.Arrays;
 
@@ -56,9 +59,8 @@ public class UDPLayer extends Layer {
 
 // Members /////////////////////////////////////////////////////////////////////
 
-	// The UDP socket used to send and receive datagrams
-	// TODO Use MulticastSocket
-	private DatagramSocket socket;
+	// The UDP socket used to send and receive datagrams, which can also join multicast groups
+	private MulticastSocket socket;
 
 	// The thread that listens on the socket for incoming datagrams
 	private ReceiverThread receiverThread;
@@ -107,7 +109,16 @@ public class UDPLayer extends Layer {
 	 */
 	public UDPLayer(int port, boolean daemon) throws SocketException {
 		// initialize members
-		this.socket = new DatagramSocket(port);
+		try {
+			this.socket = new MulticastSocket(null);
+			// keep the exclusive port binding of a plain datagram socket
+			socket.setReuseAddress(false);
+			socket.bind(new InetSocketAddress(port));
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new SocketException(e.getMessage());
+		}
 		this.receiverThread = new ReceiverThread();
 
 		// decide if receiver thread terminates with main thread
@@ -136,6 +147,28 @@ public class UDPLayer extends Layer {
 	public void setDaemon(boolean on) {
 		receiverThread.setDaemon(on);
 	}
+	
+	/*
+	 * Joins a multicast group to receive the datagrams sent to it, e.g.,
+	 * multicast notifications of an observed resource. Only datagrams sent to
+	 * the port of this layer are received.
+	 * 
+	 * @param group The multicast address to join
+	 * @param netIf The interface to join on, null for the default interface
+	 */
+	public void joinGroup(InetAddress group, NetworkInterface netIf) throws IOException {
+		socket.joinGroup(new InetSocketAddress(group, socket.getLocalPort()), netIf);
+	}
+	
+	/*
+	 * Leaves a multicast group
+	 * 
+	 * @param group The multicast address to leave
+	 * @param netIf The interface the group was joined on, null for the default interface
+	 */
+	public void leaveGroup(InetAddress group, NetworkInterface netIf) throws IOException {
+		socket.leaveGroup(new InetSocketAddress(group, socket.getLocalPort()), netIf);
+	}
 
 // I/O implementation //////////////////////////////////////////////////////////
 
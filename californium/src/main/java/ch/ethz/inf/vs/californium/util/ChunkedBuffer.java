@@ -0,0 +1,299 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The class ChunkedBuffer collects a body that arrives in blocks without
+ * copying it on each append. The chunks are kept as they are until the
+ * buffer exceeds a size threshold, then the body is spilled to a temporary
+ * file. The complete body can be read as byte array or as stream.
+ * <p>
+ * The owner must release the buffer with {@link #dispose()}. A message that
+ * holds the buffer as payload releases it when the body is materialized, a
+ * stream from {@link #openStream()} when it is closed or read to the end.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class ChunkedBuffer {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(ChunkedBuffer.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private List<byte[]> chunks = new ArrayList<byte[]>();
+	
+	/** The size in bytes after which the body is moved to a file, 0 never spills. */
+	private long threshold;
+	
+	private long size = 0;
+	
+	private File file = null;
+	private OutputStream fileOut = null;
+	
+// Nested Classes //////////////////////////////////////////////////////////////
+	
+	/*
+	 * Stream over the body that releases the buffer after the last byte
+	 */
+	private class DisposingStream extends FilterInputStream {
+		
+		private boolean disposed = false;
+		
+		DisposingStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				release();
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0) {
+				release();
+			}
+			return n;
+		}
+		
+		@Override
+		public void close() {
+			release();
+		}
+		
+		private void release() {
+			if (!disposed) {
+				disposed = true;
+				ChunkedBuffer.close(in);
+				dispose();
+			}
+		}
+	}
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	public ChunkedBuffer(long threshold) {
+		this.threshold = threshold;
+	}
+	
+	public ChunkedBuffer() {
+		this(Properties.std.getInt("TRANSFER_SPILL_THRESHOLD"));
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Appends a chunk to the body. The array is kept by reference and must not
+	 * be modified afterwards.
+	 * 
+	 * @param chunk the data to append
+	 * @throws IOException if the chunk cannot be written to the spilled body
+	 */
+	public synchronized void append(byte[] chunk) throws IOException {
+		
+		if (chunk == null || chunk.length == 0) {
+			return;
+		}
+		
+		size += chunk.length;
+		
+		if (file == null && threshold > 0 && size > threshold) {
+			spill();
+		}
+		
+		if (fileOut != null) {
+			try {
+				fileOut.write(chunk);
+				return;
+			} catch (IOException e) {
+				size -= chunk.length;
+				throw new IOException(String.format("Failed to write chunk to %s: %s", file, e.getMessage()), e);
+			}
+		}
+		
+		chunks.add(chunk);
+	}
+	
+	public synchronized long size() {
+		return size;
+	}
+	
+	public synchronized boolean isSpilled() {
+		return file != null;
+	}
+	
+	/**
+	 * Returns the complete body in a single array.
+	 * 
+	 * @return the body
+	 */
+	public synchronized byte[] toByteArray() {
+		
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalStateException(String.format("Body too large for a byte array: %d bytes", size));
+		}
+		
+		byte[] body = new byte[(int) size];
+		
+		if (file != null) {
+			DataInputStream in = null;
+			try {
+				fileOut.flush();
+				in = new DataInputStream(new FileInputStream(file));
+				in.readFully(body);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to read spilled body from %s: %s", file, e.getMessage()));
+			} finally {
+				close(in);
+			}
+		} else {
+			int offset = 0;
+			for (byte[] chunk : chunks) {
+				System.arraycopy(chunk, 0, body, offset, chunk.length);
+				offset += chunk.length;
+			}
+		}
+		
+		return body;
+	}
+	
+	/**
+	 * Returns a stream over the complete body without copying it into a
+	 * single array.
+	 * 
+	 * @return a new stream starting at the beginning of the body
+	 */
+	public synchronized InputStream getInputStream() {
+		
+		if (file != null) {
+			try {
+				fileOut.flush();
+				return new FileInputStream(file);
+			} catch (IOException e) {
+				LOG.severe(String.format("Failed to read spilled body from %s: %s", file, e.getMessage()));
+				return new ByteArrayInputStream(new byte[0]);
+			}
+		}
+		
+		List<InputStream> streams = new ArrayList<InputStream>(chunks.size());
+		for (byte[] chunk : chunks) {
+			streams.add(new ByteArrayInputStream(chunk));
+		}
+		return new SequenceInputStream(Collections.enumeration(streams));
+	}
+	
+	/**
+	 * Returns a stream over the complete body that takes over the buffer. The
+	 * buffer is disposed once the stream is closed or read to the end.
+	 * 
+	 * @return a new stream starting at the beginning of the body
+	 */
+	public InputStream openStream() {
+		return new DisposingStream(getInputStream());
+	}
+	
+	/**
+	 * Releases the body and deletes the temporary file, if any.
+	 */
+	public synchronized void dispose() {
+		
+		chunks.clear();
+		size = 0;
+		
+		if (file != null) {
+			close(fileOut);
+			if (!file.delete()) {
+				LOG.warning(String.format("Failed to delete spilled body: %s", file));
+			}
+			fileOut = null;
+			file = null;
+		}
+	}
+	
+	private void spill() {
+		try {
+			// deleted by dispose(), which the owner of the buffer must call
+			file = File.createTempFile("cf-body-", ".tmp");
+			
+			fileOut = new BufferedOutputStream(new FileOutputStream(file));
+			for (byte[] chunk : chunks) {
+				fileOut.write(chunk);
+			}
+			chunks.clear();
+			
+			LOG.fine(String.format("Spilled body of %d bytes to %s", size, file));
+			
+		} catch (IOException e) {
+			LOG.severe(String.format("Failed to spill body, keeping it in memory: %s", e.getMessage()));
+			close(fileOut);
+			if (file != null) {
+				file.delete();
+			}
+			fileOut = null;
+			file = null;
+			threshold = 0;
+		}
+	}
+	
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}
@@ -31,6 +31,7 @@
 package ch.ethz.inf.vs.californium.util;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /*
  * This class describes the functionality to write raw
@@ -119,6 +120,30 @@ public class DatagramWriter {
 		}
 	}
 
+	/*
+	 * Writes the remaining bytes of a buffer to the stream
+	 * 
+	 * @param buffer The buffer to write from position to limit
+	 */
+	public void writeBytes(ByteBuffer buffer) {
+
+		// check if anything to do at all
+		if (buffer == null)
+			return;
+
+		if (buffer.hasArray() && currentBitIndex == Byte.SIZE - 1) {
+
+			// write directly from the backing array
+			byteStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+
+		} else {
+
+			while (buffer.hasRemaining()) {
+				write(buffer.get(), Byte.SIZE);
+			}
+		}
+	}
+
 	// Functions ///////////////////////////////////////////////////////////////
 
 	/*
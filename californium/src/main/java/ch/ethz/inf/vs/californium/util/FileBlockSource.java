@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.BlockSource;
+
+/**
+ * The class FileBlockSource serves a response body from a file. Blocks are
+ * read with positional reads on a file channel, so concurrent transfers of
+ * the same source do not interfere.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class FileBlockSource implements BlockSource {
+
+// Logging /////////////////////////////////////////////////////////////////////
+	
+	private static final Logger LOG = Logger.getLogger(FileBlockSource.class.getName());
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private FileChannel channel;
+	private int size;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	public FileBlockSource(File file) throws IOException {
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		this.size = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	public int size() {
+		return size;
+	}
+	
+	public ByteBuffer read(int offset, int length) throws IOException {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, Math.min(length, size - offset)));
+		
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				break;
+			}
+		}
+		
+		buffer.flip();
+		return buffer;
+	}
+	
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.warning(String.format("Failed to close file source: %s", e.getMessage()));
+		}
+	}
+}
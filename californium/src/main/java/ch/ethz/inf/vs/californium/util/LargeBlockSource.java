@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.util;
+
+import java.nio.ByteBuffer;
+
+import ch.ethz.inf.vs.californium.coap.BlockSource;
+
+/**
+ * The class LargeBlockSource generates the body of the large test resources
+ * used for blockwise transfers. Each block of the body consists of 4 lines of
+ * 64 bytes that show the block number. Only the requested range is generated,
+ * so no body is kept in memory.
+ * 
+ * @author Matthias Kovatsch
+ */
+public class LargeBlockSource implements BlockSource {
+
+// Constants ///////////////////////////////////////////////////////////////////
+	
+	private static final int LINE_LENGTH = 64;
+	private static final int LINES_PER_BLOCK = 4;
+	
+// Members /////////////////////////////////////////////////////////////////////
+	
+	private int blocks;
+	
+// Constructors ////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Creates a body of the given number of 256-byte blocks.
+	 * 
+	 * @param blocks the number of blocks
+	 */
+	public LargeBlockSource(int blocks) {
+		this.blocks = blocks;
+	}
+	
+// Methods /////////////////////////////////////////////////////////////////////
+	
+	public int size() {
+		return blocks * LINES_PER_BLOCK * LINE_LENGTH;
+	}
+	
+	public ByteBuffer read(int offset, int length) {
+		
+		ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, Math.min(length, size() - offset)));
+		
+		while (buffer.hasRemaining()) {
+			int position = offset + buffer.position();
+			int column = position % LINE_LENGTH;
+			buffer.put(getLine(position / LINE_LENGTH), column, Math.min(LINE_LENGTH - column, buffer.remaining()));
+		}
+		
+		buffer.flip();
+		return buffer;
+	}
+	
+	public void close() {
+		// nothing to release
+	}
+	
+	private byte[] getLine(int line) {
+		switch (line % LINES_PER_BLOCK) {
+			case 0:  return "/-------------------------------------------------------------\\\n".getBytes();
+			case 1:  return String.format("|                 RESOURCE BLOCK NO. %d OF %d                   |\n", line / LINES_PER_BLOCK + 1, blocks).getBytes();
+			case 2:  return "|               [each line contains 64 bytes]                 |\n".getBytes();
+			default: return "\\-------------------------------------------------------------/\n".getBytes();
+		}
+	}
+}
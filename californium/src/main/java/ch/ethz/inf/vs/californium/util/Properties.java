@@ -99,14 +99,93 @@ public class Properties extends java.util.Properties {
 		// used to avoid infinite waits for replies to non-confirmables
 		// and separate responses
 		set("DEFAULT_OVERALL_TIMEOUT", 60000); // [milliseconds]
+
+		// width of the tokens issued by the TokenManager,
+		// must be between 1 and 8
+		set("TOKEN_LENGTH", 4); // [bytes]
+		
+		// maximum number of concurrently acquired tokens,
+		// rounded up to a power of two
+		set("TOKEN_CAPACITY", 256 * 1024); // [tokens]
+		
+		// time after which unused server-side exchange state is removed,
+		// e.g., abandoned blockwise transfers
+		set("EXCHANGE_LIFETIME", 60000); // [milliseconds]
 		
+		// interval for sweeping stale exchanges
+		set("EXCHANGE_SWEEP_INTERVAL", 10000); // [milliseconds]
+
+		// time a resource may take to answer a confirmable request before
+		// it is acknowledged with an empty ACK and answered separately,
+		// must be below RESPONSE_TIMEOUT to avoid client retransmissions
+		set("SEPARATE_RESPONSE_THRESHOLD", 1000); // [milliseconds]
+
 		// the default block size for block-wise transfers
 		// must be power of two between 16 and 1024
 		set("DEFAULT_BLOCK_SIZE", 512); // [bytes]
+		
+		// number of blocks without retransmission after which the block size
+		// for a peer is doubled, 0 (default) never grows above the default size
+		set("BLOCK_SIZE_GROW_INTERVAL", 0); // [blocks]
+
+		// size of a blockwise body after which it is moved to a temporary file,
+		// 0 keeps all bodies in memory
+		set("TRANSFER_SPILL_THRESHOLD", 1024 * 1024); // [bytes]
+		
+		// time after which an unused blockwise transfer is freed
+		set("TRANSFER_IDLE_TIMEOUT", 30000); // [milliseconds]
+		
+		// maximum memory held by blockwise transfers, the least recently used
+		// are evicted first; new transfers that do not fit are rejected, 0 disables
+		set("TRANSFER_MEMORY_BUDGET", 64 * 1024 * 1024); // [bytes]
+		
+		// maximum number of Block2 requests a client keeps in flight,
+		// 1 requests the next block only after the previous one arrived
+		set("TRANSFER_WINDOW", 1); // [requests]
+		
+		// number of blocks of a streamed response body buffered for the
+		// application, fetching pauses while the buffer is full
+		set("TRANSFER_STREAM_BUFFER", 16); // [blocks]
+		
+		// number of threads handing streamed response bodies to the application
+		set("TRANSFER_STREAM_THREADS", 4); // [threads]
+
+		// interval for handing queued NON requests to ingestion sinks
+		set("INGESTION_DRAIN_INTERVAL", 10); // [milliseconds]
+		
+		// maximum number of requests handed to an ingestion sink at once
+		set("INGESTION_BATCH_SIZE", 4096); // [requests]
+		
+		// maximum number of requests queued per sink, further requests are dropped
+		set("INGESTION_QUEUE_CAPACITY", 64 * 1024); // [requests]
 
 		// the number of notifications until a CON notification will be used
 		set("OBSERVING_REFRESH_INTERVAL", 10);
 		
+		// number of threads sending notifications to observers
+		set("OBSERVING_THREADS", 4); // [threads]
+		
+		// number of observers notified by one task of a notification pass
+		set("OBSERVING_BATCH_SIZE", 256); // [observers]
+		
+		// directory to persist observing relationships across restarts,
+		// empty to keep them in memory only
+		set("OBSERVING_STORE", "");
+		
+		// interval for replacing the journal of the observing store by a snapshot
+		set("OBSERVING_SNAPSHOT_INTERVAL", 60000); // [milliseconds]
+		
+		// estimated loss of CON notifications above which an observer is evicted,
+		// 0 never evicts observers
+		set("OBSERVING_EVICTION_LOSS", 50); // [percent]
+		
+		// interval for checking client subscriptions for missing notifications
+		set("SUBSCRIPTION_CHECK_INTERVAL", 1000); // [milliseconds]
+		
+		// maximum random delay added to the Max-Age of a notification before
+		// a silent subscription is re-registered
+		set("SUBSCRIPTION_JITTER", 10000); // [milliseconds]
+
 	}
 
 	// default properties used by the library
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.util.ChunkedBuffer;
+
+
+public class ChunkedBufferTest {
+
+	@Test
+	public void testInMemory() throws IOException {
+		ChunkedBuffer buffer = new ChunkedBuffer(0);
+		
+		byte[] body = fill(buffer, 10, 64);
+		
+		assertFalse(buffer.isSpilled());
+		assertEquals(body.length, buffer.size());
+		assertArrayEquals(body, buffer.toByteArray());
+		assertArrayEquals(body, read(buffer.getInputStream(), body.length));
+	}
+	
+	@Test
+	public void testSpilled() throws IOException {
+		ChunkedBuffer buffer = new ChunkedBuffer(256);
+		
+		byte[] body = fill(buffer, 10, 64);
+		
+		assertTrue(buffer.isSpilled());
+		assertEquals(body.length, buffer.size());
+		assertArrayEquals(body, buffer.toByteArray());
+		assertArrayEquals(body, read(buffer.getInputStream(), body.length));
+		
+		buffer.dispose();
+		assertFalse(buffer.isSpilled());
+		assertEquals(0, buffer.size());
+	}
+	
+	@Test
+	public void testStreamDisposes() throws IOException {
+		ChunkedBuffer buffer = new ChunkedBuffer(256);
+		
+		byte[] body = fill(buffer, 10, 64);
+		
+		assertTrue(buffer.isSpilled());
+		assertArrayEquals(body, read(buffer.openStream(), body.length));
+		assertFalse(buffer.isSpilled());
+		assertEquals(0, buffer.size());
+	}
+	
+	private static byte[] fill(ChunkedBuffer buffer, int chunks, int chunkSize) throws IOException {
+		byte[] body = new byte[chunks * chunkSize];
+		for (int i = 0; i < body.length; ++i) {
+			body[i] = (byte) (i * 7);
+		}
+		for (int c = 0; c < chunks; ++c) {
+			byte[] chunk = new byte[chunkSize];
+			System.arraycopy(body, c * chunkSize, chunk, 0, chunkSize);
+			buffer.append(chunk);
+		}
+		return body;
+	}
+	
+	private static byte[] read(InputStream in, int length) throws IOException {
+		byte[] data = new byte[length];
+		int offset = 0;
+		int n;
+		while (offset < length && (n = in.read(data, offset, length - offset)) > 0) {
+			offset += n;
+		}
+		assertEquals(-1, in.read());
+		in.close();
+		return data;
+	}
+}
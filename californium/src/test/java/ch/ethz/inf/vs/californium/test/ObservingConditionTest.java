@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Communicator;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.endpoint.LocalEndpoint;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+
+
+public class ObservingConditionTest {
+
+	private static LocalEndpoint endpoint;
+	private static int resources;
+	
+	private List<Observer> observers = new ArrayList<Observer>();
+
+	@BeforeClass
+	public static void setUpEndpoint() throws IOException {
+		endpoint = new LocalEndpoint(0, 0, true);
+	}
+	
+	@After
+	public void tearDown() {
+		for (Observer observer : observers) {
+			observer.close();
+		}
+	}
+	
+	@Test
+	public void testGreater() throws Exception {
+		ValueResource resource = newResource();
+		Observer observer = observe(resource, "gt=10");
+		
+		// crossed back, notified once
+		resource.change("5", "10", "11", "12", "9", "8");
+		assertEquals(Arrays.asList("11", "12", "9"), observer.notifications());
+	}
+	
+	@Test
+	public void testLess() throws Exception {
+		ValueResource resource = newResource();
+		Observer observer = observe(resource, "lt=0");
+		
+		resource.change("1", "-1", "0", "0.5");
+		assertEquals(Arrays.asList("-1", "0"), observer.notifications());
+	}
+	
+	@Test
+	public void testBand() throws Exception {
+		ValueResource resource = newResource();
+		Observer observer = observe(resource, "band=20,30");
+		
+		resource.change("25", "20", "31", "19", "22", "28");
+		assertEquals(Arrays.asList("31", "19", "22"), observer.notifications());
+	}
+	
+	@Test
+	public void testStep() throws Exception {
+		ValueResource resource = newResource();
+		Observer observer = observe(resource, "step=5");
+		
+		// the step is measured from the last notified value
+		resource.change("10", "14", "15", "11", "19", "20", "10");
+		assertEquals(Arrays.asList("10", "15", "20", "10"), observer.notifications());
+	}
+	
+	@Test
+	public void testCombined() throws Exception {
+		ValueResource resource = newResource();
+		Observer observer = observe(resource, "gt=10&step=2");
+		// equal conditions regardless of the parameter order
+		Observer reordered = observe(resource, "step=2&gt=10");
+		
+		// crossing back ignores the step
+		resource.change("10", "11", "12", "13", "10", "0");
+		assertEquals(Arrays.asList("11", "13", "10"), observer.notifications());
+		assertEquals(Arrays.asList("11", "13", "10"), reordered.notifications());
+	}
+	
+	@Test
+	public void testInvalid() throws Exception {
+		ValueResource resource = newResource();
+		Observer invalid = observe(resource, "gt=abc");
+		Observer partly = observe(resource, "gt=abc&lt=5");
+		
+		// invalid parameters are ignored
+		resource.change("7", "3", "8");
+		assertEquals(Arrays.asList("7", "3", "8"), invalid.notifications());
+		assertEquals(Arrays.asList("3", "8"), partly.notifications());
+	}
+	
+	@Test
+	public void testNotNumeric() throws Exception {
+		ValueResource resource = newResource();
+		Observer observer = observe(resource, "gt=10");
+		
+		resource.change("n/a", "5");
+		assertEquals(Arrays.asList("n/a"), observer.notifications());
+	}
+	
+	private ValueResource newResource() throws IOException {
+		ValueResource resource = new ValueResource("condition" + (++resources));
+		endpoint.addResource(resource);
+		return resource;
+	}
+	
+	private Observer observe(LocalResource resource, String query) throws Exception {
+		Observer observer = new Observer(resource, query);
+		observers.add(observer);
+		return observer;
+	}
+	
+	/*
+	 * An observable resource with a numeric value. An unconditional observer
+	 * receives each change before the next one is made.
+	 */
+	private class ValueResource extends LocalResource {
+		
+		private volatile String value = "0";
+		private Observer barrier;
+		
+		public ValueResource(String identifier) {
+			super(identifier);
+			isObservable(true);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT, value, MediaTypeRegistry.TEXT_PLAIN);
+		}
+		
+		public void change(String... values) throws Exception {
+			if (barrier==null) {
+				barrier = observe(this, null);
+			}
+			for (String changed : values) {
+				value = changed;
+				ObservingManager.getInstance().notifyObservers(this);
+				assertEquals(changed, barrier.next());
+			}
+		}
+	}
+	
+	/*
+	 * A client that registers for a resource and acknowledges the
+	 * notifications.
+	 */
+	private static class Observer extends Thread {
+		
+		private static int tokens;
+		
+		private DatagramSocket socket;
+		private BlockingQueue<String> payloads = new LinkedBlockingQueue<String>();
+		
+		public Observer(LocalResource resource, String query) throws Exception {
+			socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+			setDaemon(true);
+			start();
+			
+			GETRequest request = new GETRequest();
+			request.setURI(resource.getPath() + (query!=null ? "?" + query : ""));
+			request.setMID(++tokens);
+			request.setToken(new byte[] {(byte) tokens});
+			request.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+			send(request);
+			
+			// the registration is answered with the current value
+			assertNotNull(next());
+		}
+		
+		@Override
+		public void run() {
+			byte[] buffer = new byte[1024];
+			try {
+				while (true) {
+					DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+					socket.receive(datagram);
+					
+					Message msg = Message.fromByteArray(Arrays.copyOf(buffer, datagram.getLength()));
+					if (msg.isConfirmable()) {
+						send(msg.newAccept());
+					}
+					if (msg instanceof Response) {
+						payloads.add(msg.getPayloadString());
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+		
+		public String next() throws InterruptedException {
+			return payloads.poll(2, TimeUnit.SECONDS);
+		}
+		
+		/*
+		 * Returns the notifications received until no more arrive.
+		 */
+		public List<String> notifications() throws InterruptedException {
+			List<String> received = new ArrayList<String>();
+			String payload;
+			while ((payload = payloads.poll(200, TimeUnit.MILLISECONDS))!=null) {
+				received.add(payload);
+			}
+			return received;
+		}
+		
+		public void close() {
+			socket.close();
+		}
+		
+		private void send(Message msg) throws IOException {
+			byte[] data = msg.toByteArray();
+			socket.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), Communicator.getInstance().port()));
+		}
+	}
+}
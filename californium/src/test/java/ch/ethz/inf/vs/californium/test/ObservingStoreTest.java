@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Communicator;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.ObservingManager;
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.endpoint.LocalEndpoint;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+
+/*
+ * Starts an endpoint on the files a previous run left in the OBSERVING_STORE
+ * directory. The store is opened with the ObservingManager, so this class
+ * needs a JVM of its own.
+ */
+public class ObservingStoreTest {
+
+	/** The increment of the Observe value of relationships restored by the ObservingManager. */
+	private static final int SEQUENCE_RESTORE_GAP = 0x7FFFFF;
+	
+	private static File directory;
+	private static byte[] complete;
+	
+	private static Client restored;
+	private static Client removed;
+	private static Client snapshot;
+	private static Client journal;
+	private static Client truncated;
+	
+	private static LocalEndpoint endpoint;
+	private static LocalResource a;
+	private static LocalResource b;
+	private static LocalResource c;
+
+	@BeforeClass
+	public static void setUp() throws IOException {
+		directory = File.createTempFile("observers", "");
+		directory.delete();
+		directory.mkdirs();
+		
+		restored = new Client();
+		removed = new Client();
+		snapshot = new Client();
+		journal = new Client();
+		truncated = new Client();
+		
+		// relationships of the last snapshot
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		add(records, "/c", snapshot, "s", 2);
+		write("observers.snapshot", records.toByteArray());
+		
+		// changes since, ending with a record torn by a crash
+		records = new ByteArrayOutputStream();
+		add(records, "/a", restored, "a", 7);
+		add(records, "/b", removed, "b", 8);
+		remove(records, "/b", removed);
+		add(records, "/c", journal, "j", 3);
+		complete = records.toByteArray();
+		add(records, "/a", truncated, "t", 4);
+		byte[] torn = records.toByteArray();
+		write("observers.journal", Arrays.copyOf(torn, torn.length - 3));
+		
+		Properties.std.set("OBSERVING_STORE", directory.getPath());
+		endpoint = new LocalEndpoint(0, 0, true);
+		
+		a = new ValueResource("a");
+		b = new ValueResource("b");
+		c = new ValueResource("c");
+		endpoint.addResource(a);
+		endpoint.addResource(b);
+		endpoint.addResource(c);
+	}
+	
+	@AfterClass
+	public static void tearDown() {
+		for (Client client : new Client[] {restored, removed, snapshot, journal, truncated}) {
+			client.close();
+		}
+	}
+	
+	@Test
+	public void testRestore() throws Exception {
+		ObservingManager.getInstance().notifyObservers(a);
+		
+		Response notification = restored.next();
+		assertNotNull(notification);
+		assertArrayEquals("a".getBytes(), notification.getToken());
+		
+		// the sequence continues newer than all notifications sent before the restart
+		assertEquals(7 + SEQUENCE_RESTORE_GAP + 1, notification.getFirstOption(OptionNumberRegistry.OBSERVE).getIntValue());
+	}
+	
+	@Test
+	public void testRemoved() throws Exception {
+		ObservingManager.getInstance().notifyObservers(b);
+		
+		assertNull(removed.next());
+	}
+	
+	@Test
+	public void testSnapshot() throws Exception {
+		ObservingManager.getInstance().notifyObservers(c);
+		
+		Response notification = snapshot.next();
+		assertNotNull(notification);
+		assertArrayEquals("s".getBytes(), notification.getToken());
+		
+		notification = journal.next();
+		assertNotNull(notification);
+		assertArrayEquals("j".getBytes(), notification.getToken());
+	}
+	
+	@Test
+	public void testTruncatedJournal() throws Exception {
+		ObservingManager.getInstance().notifyObservers(a);
+		
+		assertNull(truncated.next());
+		
+		// a new registration is appended after the complete records
+		Client client = new Client();
+		try {
+			client.send(observe("/a", "n"));
+			assertNotNull(client.next());
+			
+			File file = new File(directory, "observers.journal");
+			for (int i = 0; i < 50 && file.length() <= complete.length; ++i) {
+				Thread.sleep(20);
+			}
+			byte[] data = read(file);
+			assertTrue(data.length > complete.length);
+			assertArrayEquals(complete, Arrays.copyOf(data, complete.length));
+			assertEquals('A', data[complete.length]);
+		} finally {
+			client.close();
+		}
+	}
+	
+	private static GETRequest observe(String path, String token) {
+		GETRequest request = new GETRequest();
+		request.setURI(path);
+		request.setMID(token.charAt(0));
+		request.setToken(token.getBytes());
+		request.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+		return request;
+	}
+	
+	/*
+	 * Appends a registration in the format of the store.
+	 */
+	private static void add(ByteArrayOutputStream records, String path, Client client, String token, int sequence) throws IOException {
+		byte[] encoded = observe(path, token).toByteArray();
+		
+		DataOutputStream out = new DataOutputStream(records);
+		out.writeByte('A');
+		out.writeUTF(path);
+		out.writeByte(4);
+		out.write(InetAddress.getByName("127.0.0.1").getAddress());
+		out.writeShort(client.port());
+		out.writeInt(sequence);
+		out.writeShort(encoded.length);
+		out.write(encoded);
+	}
+	
+	/*
+	 * Appends a termination in the format of the store.
+	 */
+	private static void remove(ByteArrayOutputStream records, String path, Client client) throws IOException {
+		DataOutputStream out = new DataOutputStream(records);
+		out.writeByte('R');
+		out.writeUTF(path);
+		out.writeUTF("127.0.0.1:" + client.port());
+	}
+	
+	private static void write(String name, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(new File(directory, name));
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+	
+	private static byte[] read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int) raf.length()];
+			raf.readFully(data);
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private static class ValueResource extends LocalResource {
+		
+		public ValueResource(String identifier) {
+			super(identifier);
+			isObservable(true);
+		}
+		
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT, "42", MediaTypeRegistry.TEXT_PLAIN);
+		}
+	}
+	
+	/*
+	 * A client that receives the notifications and acknowledges them.
+	 */
+	private static class Client extends Thread {
+		
+		private DatagramSocket socket;
+		private BlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+		
+		public Client() throws IOException {
+			socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+			setDaemon(true);
+			start();
+		}
+		
+		@Override
+		public void run() {
+			byte[] buffer = new byte[1024];
+			try {
+				while (true) {
+					DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+					socket.receive(datagram);
+					
+					Message msg = Message.fromByteArray(Arrays.copyOf(buffer, datagram.getLength()));
+					if (msg.isConfirmable()) {
+						send(msg.newAccept());
+					}
+					if (msg instanceof Response) {
+						responses.add((Response) msg);
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+		
+		public int port() {
+			return socket.getLocalPort();
+		}
+		
+		public Response next() throws InterruptedException {
+			return responses.poll(1, TimeUnit.SECONDS);
+		}
+		
+		public void send(Message msg) throws IOException {
+			byte[] data = msg.toByteArray();
+			socket.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), Communicator.getInstance().port()));
+		}
+		
+		public void close() {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockSource;
+import ch.ethz.inf.vs.californium.coap.CodeRegistry;
+import ch.ethz.inf.vs.californium.coap.Communicator;
+import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.endpoint.LocalEndpoint;
+import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.util.Properties;
+
+
+public class ResponseStreamTest {
+
+	/** The size of the body in blocks, well above the stream buffer. */
+	private static final int BLOCKS = 64;
+	
+	private static final int BLOCK_SIZE = 64;
+	
+	private static LocalEndpoint endpoint;
+	
+	/** The highest offset read from the body by the server. */
+	private static AtomicInteger served = new AtomicInteger();
+
+	@BeforeClass
+	public static void setUpEndpoint() throws IOException {
+		endpoint = new LocalEndpoint(0, BLOCK_SIZE, true);
+		endpoint.addResource(new LocalResource("stream") {
+			@Override
+			public void performGET(GETRequest request) {
+				request.respond(CodeRegistry.RESP_CONTENT, new Body(), MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+			}
+		});
+	}
+	
+	@Test
+	public void testPauseResume() throws Exception {
+		final Semaphore gate = new Semaphore(0);
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final CountDownLatch completed = new CountDownLatch(1);
+		final AtomicReference<Response> response = new AtomicReference<Response>();
+		final CountDownLatch responded = new CountDownLatch(1);
+		
+		Request request = new GETRequest() {
+			@Override
+			protected void responsePayloadAppended(Response response, byte[] block) {
+				gate.acquireUninterruptibly();
+				received.write(block, 0, block.length);
+			}
+			@Override
+			protected void responseCompleted(Response response) {
+				completed.countDown();
+			}
+			@Override
+			protected void handleResponse(Response resp) {
+				response.set(resp);
+				responded.countDown();
+			}
+		};
+		execute(request);
+		
+		// the consumer is stuck in the first block, fetching stops once the buffer is full
+		Thread.sleep(500);
+		int buffered = served.get() / BLOCK_SIZE;
+		assertTrue(buffered < BLOCKS);
+		assertTrue(buffered <= Properties.std.getInt("TRANSFER_STREAM_BUFFER") + Properties.std.getInt("TRANSFER_WINDOW") + 1);
+		
+		// resumes as the consumer catches up
+		gate.release(BLOCKS);
+		assertTrue(completed.await(5, TimeUnit.SECONDS));
+		assertTrue(responded.await(1, TimeUnit.SECONDS));
+		
+		assertEquals(CodeRegistry.RESP_CONTENT, response.get().getCode());
+		assertEquals(0, response.get().payloadSize());
+		assertArrayEquals(Body.content(), received.toByteArray());
+	}
+	
+	@Test
+	public void testConsumerFailure() throws Exception {
+		final AtomicInteger blocks = new AtomicInteger();
+		final CountDownLatch completed = new CountDownLatch(1);
+		final AtomicReference<Response> response = new AtomicReference<Response>();
+		final CountDownLatch responded = new CountDownLatch(1);
+		
+		Request request = new GETRequest() {
+			@Override
+			protected void responsePayloadAppended(Response response, byte[] block) {
+				blocks.incrementAndGet();
+				throw new IllegalStateException("application failure");
+			}
+			@Override
+			protected void responseCompleted(Response response) {
+				completed.countDown();
+			}
+			@Override
+			protected void handleResponse(Response resp) {
+				response.set(resp);
+				responded.countDown();
+			}
+		};
+		execute(request);
+		
+		// the transfer is aborted instead of completed
+		assertTrue(responded.await(5, TimeUnit.SECONDS));
+		assertEquals(CodeRegistry.RESP_INTERNAL_SERVER_ERROR, response.get().getCode());
+		assertFalse(completed.await(100, TimeUnit.MILLISECONDS));
+		assertEquals(1, blocks.get());
+	}
+	
+	private static void execute(Request request) throws IOException {
+		served.set(0);
+		request.setURI("coap://127.0.0.1:" + Communicator.getInstance().port() + "/stream");
+		request.enableResponseStreaming(true);
+		request.execute();
+	}
+	
+	/*
+	 * A body of the given number of blocks that records how far it was read.
+	 */
+	private static class Body implements BlockSource {
+		
+		public static byte[] content() {
+			byte[] content = new byte[BLOCKS * BLOCK_SIZE];
+			for (int i = 0; i < content.length; ++i) {
+				content[i] = (byte) i;
+			}
+			return content;
+		}
+		
+		public int size() {
+			return BLOCKS * BLOCK_SIZE;
+		}
+		
+		public ByteBuffer read(int offset, int length) {
+			int end = Math.min(offset + length, size());
+			
+			int previous;
+			do {
+				previous = served.get();
+			} while (end > previous && !served.compareAndSet(previous, end));
+			
+			return ByteBuffer.wrap(content(), offset, end - offset);
+		}
+		
+		public void close() {
+			// nothing to release
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.SubscriptionManager;
+
+
+public class SubscriptionManagerTest {
+
+	/** The range of the 24-bit Observe values. */
+	private static final int MASK = 0xFFFFFF;
+	
+	/** The increment of the Observe value of relationships restored by the ObservingManager. */
+	private static final int SEQUENCE_RESTORE_GAP = 0x7FFFFF;
+	
+	@Test
+	public void testOrder() {
+		assertTrue(SubscriptionManager.isOlder(4, 5));
+		assertFalse(SubscriptionManager.isOlder(5, 4));
+		assertTrue(SubscriptionManager.isOlder(1000, 500000));
+		assertFalse(SubscriptionManager.isOlder(500000, 1000));
+	}
+	
+	@Test
+	public void testEqual() {
+		assertTrue(SubscriptionManager.isOlder(0, 0));
+		assertTrue(SubscriptionManager.isOlder(42, 42));
+		assertTrue(SubscriptionManager.isOlder(MASK, MASK));
+	}
+	
+	@Test
+	public void testWrapAround() {
+		assertFalse(SubscriptionManager.isOlder(0, MASK));
+		assertTrue(SubscriptionManager.isOlder(MASK, 0));
+		assertFalse(SubscriptionManager.isOlder(5, MASK - 5));
+		assertTrue(SubscriptionManager.isOlder(MASK - 5, 5));
+	}
+	
+	@Test
+	public void testHalfRange() {
+		int half = 1 << 23;
+		
+		// just below half the range the order is kept
+		assertTrue(SubscriptionManager.isOlder(0, half - 1));
+		assertFalse(SubscriptionManager.isOlder(half - 1, 0));
+		
+		// beyond half the range the values wrapped around
+		assertFalse(SubscriptionManager.isOlder(0, half + 1));
+		assertTrue(SubscriptionManager.isOlder(half + 1, 0));
+		
+		// exactly half the range apart, either value is newer
+		assertFalse(SubscriptionManager.isOlder(0, half));
+		assertFalse(SubscriptionManager.isOlder(half, 0));
+	}
+	
+	@Test
+	public void testRestoreGap() {
+		int[] snapshots = {0, 1000, MASK - 10, 1 << 23};
+		
+		for (int stored : snapshots) {
+			int restored = (stored + SEQUENCE_RESTORE_GAP) & MASK;
+			
+			// newer than the stored value and all values sent since the snapshot
+			for (int sent : new int[] {0, 1, 1000, SEQUENCE_RESTORE_GAP - 1}) {
+				assertFalse(SubscriptionManager.isOlder(restored, (stored + sent) & MASK));
+			}
+			
+			// a snapshot older than the gap can no longer be told apart
+			assertTrue(SubscriptionManager.isOlder(restored, (stored + SEQUENCE_RESTORE_GAP) & MASK));
+		}
+	}
+}
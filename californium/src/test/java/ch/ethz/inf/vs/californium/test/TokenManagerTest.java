@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2012, Institute for Pervasive Computing, ETH Zurich.
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * 
+ * This file is part of the Californium (Cf) CoAP framework.
+ ******************************************************************************/
+package ch.ethz.inf.vs.californium.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.Option;
+import ch.ethz.inf.vs.californium.coap.TokenManager;
+
+
+public class TokenManagerTest {
+
+	@Test
+	public void testFixedWidth() {
+		TokenManager manager = new TokenManager(4, 1024);
+		
+		for (int i = 0; i < 100; ++i) {
+			assertEquals(4, manager.acquireToken().length);
+		}
+	}
+	
+	@Test
+	public void testReleaseByValue() {
+		TokenManager manager = new TokenManager(4, 1024);
+		
+		byte[] token = manager.acquireToken();
+		byte[] copy = token.clone();
+		
+		assertTrue(manager.isAcquired(copy));
+		manager.releaseToken(copy);
+		assertFalse(manager.isAcquired(token));
+	}
+	
+	@Test
+	public void testEmptyToken() {
+		TokenManager manager = new TokenManager(4, 1024);
+		
+		assertEquals(0, manager.acquireToken(true).length);
+		assertEquals(4, manager.acquireToken(true).length);
+		
+		manager.releaseToken(new byte[0]);
+		assertFalse(manager.isAcquired(new byte[0]));
+		assertEquals(0, manager.acquireToken(true).length);
+	}
+	
+	@Test
+	public void testCapacity() {
+		TokenManager manager = new TokenManager(2, 16);
+		
+		List<byte[]> tokens = new ArrayList<byte[]>();
+		for (int i = 0; i < 16; ++i) {
+			tokens.add(manager.acquireToken());
+		}
+		
+		try {
+			manager.acquireToken();
+			fail("Capacity not enforced");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		
+		manager.releaseToken(tokens.get(7));
+		assertEquals(2, manager.acquireToken().length);
+	}
+	
+	@Test
+	public void testConcurrentAcquisition() throws InterruptedException {
+		
+		final int threads = 8;
+		final int perThread = 32 * 1024;
+		
+		final TokenManager manager = new TokenManager(4, threads * perThread);
+		final Set<String> tokens = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; ++t) {
+			workers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < perThread; ++i) {
+						tokens.add(Option.hex(manager.acquireToken()));
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		
+		// all outstanding tokens must be distinct
+		assertEquals(threads * perThread, tokens.size());
+		
+		for (String token : tokens) {
+			byte[] bytes = new byte[4];
+			for (int i = 0; i < 4; ++i) {
+				bytes[i] = (byte) Integer.parseInt(token.substring(3 * i, 3 * i + 2), 16);
+			}
+			assertTrue(manager.isAcquired(bytes));
+			manager.releaseToken(bytes);
+			assertFalse(manager.isAcquired(bytes));
+		}
+	}
+}
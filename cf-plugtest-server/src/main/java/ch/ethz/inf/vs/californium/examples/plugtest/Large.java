@@ -34,6 +34,7 @@ import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
 import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.util.LargeBlockSource;
 
 /**
  * This resource implements a test of specification for the
@@ -52,29 +53,7 @@ public class Large extends LocalResource {
 	@Override
 	public void performGET(GETRequest request) {
 		
-		StringBuilder builder = new StringBuilder();
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 1 OF 5                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 2 OF 5                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 3 OF 5                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 4 OF 5                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 5 OF 5                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		
-		request.respond(CodeRegistry.RESP_CONTENT, builder.toString(), MediaTypeRegistry.TEXT_PLAIN);
+		// the body is generated for the requested blocks only
+		request.respond(CodeRegistry.RESP_CONTENT, new LargeBlockSource(5), MediaTypeRegistry.TEXT_PLAIN);
 	}
-
 }
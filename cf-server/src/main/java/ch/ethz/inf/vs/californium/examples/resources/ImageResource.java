@@ -31,16 +31,18 @@
 package ch.ethz.inf.vs.californium.examples.resources;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
 import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Option;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.util.FileBlockSource;
 
 /**
  * This class implements an "/image" resource for demonstration purposes.
@@ -110,31 +112,23 @@ public class ImageResource extends LocalResource {
 			return;
 		}
 		
-		//get length of file
-		int fileLength = (int)file.length();
-		
-		FileInputStream fileIn = null;
-		byte[] fileData = new byte[fileLength];
+		// create response
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
 		
-		try
-		{
-		  //open input stream from file
-		  fileIn = new FileInputStream(file);
-		  //read file into byte array
-		  fileIn.read(fileData);
-		  fileIn.close();
-		} catch (Exception e) {
+		try {
+			// only the requested blocks are read from the file
+			response.setPayload(new FileBlockSource(file));
+		} catch (IOException e) {
 			request.respond(CodeRegistry.RESP_INTERNAL_SERVER_ERROR, "IO error");
 			System.err.println("/image IO error: " +e.getMessage());
 			return;
 		}
-		
-		// create response
-		Response response = new Response(CodeRegistry.RESP_CONTENT);
-		response.setPayload(fileData);
 
 		// set content type
 		response.setContentType(ct);
+		
+		// identify the version of the file, so that clients can resume downloads
+		response.setOption(new Option((int) (file.lastModified() ^ file.length()), OptionNumberRegistry.ETAG));
 
 		// complete the request
 		request.respond(response);
@@ -32,7 +32,9 @@ package ch.ethz.inf.vs.californium.examples.resources;
 
 import ch.ethz.inf.vs.californium.coap.CodeRegistry;
 import ch.ethz.inf.vs.californium.coap.GETRequest;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
 import ch.ethz.inf.vs.californium.endpoint.LocalResource;
+import ch.ethz.inf.vs.californium.util.LargeBlockSource;
 
 /*
  * This class implements a resource that returns a larger amount of
@@ -53,41 +55,8 @@ public class LargeResource extends LocalResource {
 
 	@Override
 	public void performGET(GETRequest request) {
-		StringBuilder builder = new StringBuilder();
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 1 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 2 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 3 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 4 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 5 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 6 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 7 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
-		builder.append("/-------------------------------------------------------------\\\n");
-		builder.append("|                 RESOURCE BLOCK NO. 8 OF 8                   |\n");
-		builder.append("|               [each line contains 64 bytes]                 |\n");
-		builder.append("\\-------------------------------------------------------------/\n");
 		
-		request.respond(CodeRegistry.RESP_CONTENT, builder.toString());
+		// the body is generated for the requested blocks only
+		request.respond(CodeRegistry.RESP_CONTENT, new LargeBlockSource(8), MediaTypeRegistry.UNDEFINED);
 	}
-
 }